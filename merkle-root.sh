@@ -0,0 +1,39 @@
+#!/bin/sh
+# Prints the Merkle root of every file given, see MerkleRootCli for the options.
+#
+# Class data sharing only works for classes in jar files, so the compiled classes are first packed into
+# merkle-root.jar. The first run records the classes the tool loads into an AppCDS archive
+# (-XX:ArchiveClassesAtExit), every later run maps that archive (-XX:SharedArchiveFile) instead of loading and
+# verifying the classes again. Only the C1 compiler and the serial collector are used, both start faster and are
+# enough for short jobs. The jar and the archive are rebuilt whenever a compiled class is newer than the jar, an
+# archive recorded from other classes would be refused by the JVM or, worse, run the old code. Both are written to a
+# temporary file of this process and renamed into place, so runs started at the same time never see half a file.
+#
+#   MERKLE_CLASSES      compiled classes, defaults to the IntelliJ output directory
+#   MERKLE_JAR          jar packed from them, defaults to merkle-root.jar next to this script
+#   MERKLE_CDS_ARCHIVE  archive file, defaults to merkle-root.jsa next to this script
+
+DIR=$(cd "$(dirname "$0")" && pwd)
+CLASSES="${MERKLE_CLASSES:-$DIR/out/production/MerkleTreeProject}"
+JAR="${MERKLE_JAR:-$DIR/merkle-root.jar}"
+ARCHIVE="${MERKLE_CDS_ARCHIVE:-$DIR/merkle-root.jsa}"
+OPTIONS="-XX:TieredStopAtLevel=1 -XX:+UseSerialGC -Xshare:auto"
+MAIN=edu.cmu.andrew.nikhilka.MerkleRootCli
+
+if [ ! -f "$JAR" ] || [ -n "$(find "$CLASSES" -newer "$JAR" -type f -print 2>/dev/null | head -n 1)" ]; then
+    jar cf "$JAR.$$" -C "$CLASSES" . || { rm -f "$JAR.$$"; exit 2; }
+    rm -f "$ARCHIVE"
+    mv -f "$JAR.$$" "$JAR" || exit 2
+fi
+
+if [ -f "$ARCHIVE" ]; then
+    exec java $OPTIONS -XX:SharedArchiveFile="$ARCHIVE" -cp "$JAR" $MAIN "$@"
+fi
+
+# no exec here, the archive is only renamed once the JVM has written it at exit
+java $OPTIONS -XX:ArchiveClassesAtExit="$ARCHIVE.$$" -Xlog:cds=off -cp "$JAR" $MAIN "$@"
+STATUS=$?
+if [ -f "$ARCHIVE.$$" ]; then
+    mv -f "$ARCHIVE.$$" "$ARCHIVE"
+fi
+exit $STATUS
@@ -0,0 +1,367 @@
+/**
+ * @author Nikhil Kashyap
+ */
+package edu.cmu.andrew.nikhilka;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class reads many files at once with AsynchronousFileChannel instead of one blocking Scanner per file. Every
+ * file keeps up to queueDepth reads of large, block aligned ranges in flight, and the blocks are handed to a
+ * LineReader in file order as soon as the block before them has been consumed. All files share one small thread
+ * pool, which both performs the reads and runs the hashing, so a hundred concurrent builds do not need a hundred
+ * threads and the disk always sees a deep queue of large requests. The blocks are read as they are on disk, so
+ * compressed files have to go through CompressedInput instead.
+ */
+public class AsyncBlockReader implements Closeable {
+
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+    public static final int DEFAULT_QUEUE_DEPTH = 8;
+
+    private static final int ALIGNMENT = 4096;
+
+    /**
+     * executor - threads shared by all channels, they run the reads and the completion handlers
+     * blockSize - bytes per read, a multiple of ALIGNMENT so every read starts on a page boundary
+     * queueDepth - number of reads each file keeps in flight
+     */
+    private final ExecutorService executor;
+    private final int blockSize;
+    private final int queueDepth;
+
+    public AsyncBlockReader() {
+        this(DEFAULT_BLOCK_SIZE, DEFAULT_QUEUE_DEPTH, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a reader with its own pool of threads.
+     * @param blockSize
+     * Bytes per read, rounded up to a multiple of 4096
+     * @param queueDepth
+     * Number of reads each file keeps in flight, at least 1
+     * @param threads
+     * Number of threads shared by all files read at the same time
+     */
+    public AsyncBlockReader(int blockSize, int queueDepth, int threads) {
+        if (blockSize <= 0 || queueDepth <= 0 || threads <= 0)
+            throw new IllegalArgumentException("block size, queue depth and threads must be positive");
+
+        this.blockSize = (int) Math.min(Integer.MAX_VALUE - ALIGNMENT + 1,
+                ((long) blockSize + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT);
+        this.queueDepth = queueDepth;
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "async-block-reader");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Reads a file asynchronously and passes each of its lines to the consumer.
+     * Theta(n), linear in the size of the file
+     * @param file
+     * File to read
+     * @param consumer
+     * Receives every line in file order, one call at a time, on a thread of this reader
+     * @return
+     * Future completed when the last line has been consumed, or completed exceptionally if a read or the consumer
+     * failed
+     */
+    public CompletableFuture<Void> readLines(Path file, LineReader.LineConsumer consumer) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        try {
+            AsynchronousFileChannel channel = AsynchronousFileChannel.open(file,
+                    Collections.singleton(StandardOpenOption.READ), executor);
+            new Transfer(channel, new LineReader(consumer), done).start();
+        } catch (IOException | RuntimeException e) {
+            done.completeExceptionally(e);
+        }
+        return done;
+    }
+
+    /**
+     * Builds the OffHeapMerkleTree of a file from asynchronous reads. The root is the one MerkleTree finds.
+     * @param file
+     * Is a valid file containing at least one line of plain text.
+     * @param spillDirectory
+     * Directory for the level files, or null to keep the levels in direct buffers
+     * @return
+     * Future of the tree, the caller has to close it
+     */
+    public CompletableFuture<OffHeapMerkleTree> build(Path file, File spillDirectory) {
+        OffHeapHashStore leaves;
+        try {
+            leaves = spillDirectory == null ? new OffHeapHashStore() : new OffHeapHashStore(spillDirectory);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        return readLines(file, (buffer, offset, length) -> leaves.add(MerkleTree.digest(buffer, offset, length)))
+                .handle((ignored, failure) -> {
+                    Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+                    if (cause == null) {
+                        try {
+                            return new OffHeapMerkleTree(leaves, spillDirectory);
+                        } catch (IOException | RuntimeException e) {
+                            cause = e;
+                        }
+                    }
+                    closeQuietly(leaves);
+                    throw new CompletionException(cause);
+                });
+    }
+
+    /**
+     * Calculates the roots of several files with all of their reads interleaved on the shared threads. The levels are
+     * kept in direct buffers, so all trees together must fit in -XX:MaxDirectMemorySize.
+     * @param files
+     * Valid files, each containing at least one line of plain text
+     * @return
+     * Hex Merkle root of every file, in the order of files
+     */
+    public List<String> roots(List<Path> files) throws IOException {
+        return roots(files, null);
+    }
+
+    /**
+     * Calculates the roots of several files with all of their reads interleaved on the shared threads.
+     * @param files
+     * Valid files, each containing at least one line of plain text
+     * @param spillDirectory
+     * Directory for the level files, or null to keep the levels in direct buffers
+     * @return
+     * Hex Merkle root of every file, in the order of files
+     */
+    public List<String> roots(List<Path> files, File spillDirectory) throws IOException {
+        List<CompletableFuture<String>> pending = new ArrayList<>();
+        for (Path file : files) {
+            pending.add(build(file, spillDirectory).thenApply(tree -> {
+                String root = tree.getRoot();
+                closeQuietly(tree);
+                return root;
+            }));
+        }
+
+        List<String> roots = new ArrayList<>();
+        for (CompletableFuture<String> root : pending) {
+            try {
+                roots.add(root.join());
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                throw e;
+            }
+        }
+        return roots;
+    }
+
+    /**
+     * Stops the shared threads. Reads still in flight are abandoned.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+            //nothing was written, there is nothing to lose
+        }
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * One block of a file, read into its own direct buffer.
+     */
+    private static final class Block {
+        final ByteBuffer buffer;
+        long index;
+        boolean ready;
+
+        Block(int capacity) {
+            buffer = ByteBuffer.allocateDirect(capacity);
+        }
+    }
+
+    /**
+     * The reads of one file. Blocks may complete in any order; block i waits in slot i % queueDepth until every block
+     * before it has been fed to the LineReader. Only one thread drains the ready blocks at a time, so the LineReader
+     * and its consumer never run concurrently.
+     *
+     * channel - the open file, closed when the transfer ends
+     * blocks - total number of blocks of the file
+     * slots - buffers of the blocks in flight
+     * next - index of the next block to feed to the reader
+     * draining - true while a thread is feeding ready blocks
+     * ended - true once a drainer has found every block fed and taken over ending the transfer
+     */
+    private final class Transfer implements CompletionHandler<Integer, Block> {
+        private final AsynchronousFileChannel channel;
+        private final LineReader reader;
+        private final CompletableFuture<Void> done;
+        private final long size;
+        private final long blocks;
+        private final Block[] slots;
+        private final byte[] copy;
+        private long next;
+        private boolean draining;
+        private boolean ended;
+
+        Transfer(AsynchronousFileChannel channel, LineReader reader, CompletableFuture<Void> done) throws IOException {
+            this.channel = channel;
+            this.reader = reader;
+            this.done = done;
+            size = channel.size();
+            blocks = (size + blockSize - 1) / blockSize;
+            slots = new Block[(int) Math.min(queueDepth, blocks)];
+            copy = new byte[(int) Math.min(blockSize, size)];
+        }
+
+        void start() throws IOException {
+            if (blocks == 0) {
+                end();
+                return;
+            }
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = new Block((int) Math.min(blockSize, size));
+                issue(slots[i], i);
+            }
+        }
+
+        private void issue(Block block, long index) {
+            block.index = index;
+            block.ready = false;
+            block.buffer.clear();
+            block.buffer.limit((int) Math.min(blockSize, size - index * blockSize));
+            channel.read(block.buffer, index * blockSize, block, this);
+        }
+
+        @Override
+        public void completed(Integer read, Block block) {
+            if (done.isDone())
+                return;
+            if (block.buffer.hasRemaining()) {
+                //a short read, continue where it stopped
+                if (read < 0) {
+                    failed(new EOFException("file shrank while it was read"), block);
+                } else {
+                    channel.read(block.buffer, block.index * blockSize + block.buffer.position(), block, this);
+                }
+                return;
+            }
+
+            synchronized (this) {
+                block.ready = true;
+                if (draining)
+                    return;
+                draining = true;
+            }
+            drain();
+        }
+
+        @Override
+        public void failed(Throwable exc, Block block) {
+            if (done.completeExceptionally(exc))
+                closeChannel();
+        }
+
+        /**
+         * Feeds every ready block in order, then reuses its buffer for the block queueDepth positions ahead.
+         */
+        private void drain() {
+            try {
+                boolean finished;
+                while (true) {
+                    Block block;
+                    synchronized (this) {
+                        block = next < blocks ? slots[(int) (next % slots.length)] : null;
+                        if (block == null || !block.ready) {
+                            //decided under the lock, so only the drainer that fed the last block ends the transfer
+                            finished = block == null && !ended;
+                            ended |= finished;
+                            draining = false;
+                            break;
+                        }
+                    }
+
+                    block.buffer.flip();
+                    int length = block.buffer.remaining();
+                    block.buffer.get(copy, 0, length);
+                    reader.feed(copy, 0, length);
+
+                    long ahead = block.index + slots.length;
+                    synchronized (this) {
+                        next++;
+                    }
+                    if (ahead < blocks)
+                        issue(block, ahead);
+                }
+
+                if (finished)
+                    end();
+            } catch (IOException | RuntimeException e) {
+                failed(e, null);
+            }
+        }
+
+        private void end() throws IOException {
+            try {
+                reader.finish();
+            } finally {
+                closeChannel();
+            }
+            done.complete(null);
+        }
+
+        private void closeChannel() {
+            closeQuietly(channel);
+        }
+    }
+
+    //Main function calculating the roots of all files at once on a handful of threads
+    public static void main(String[] args) throws Exception {
+        String[] files = {"CrimeLatLonXY1990_Size2.csv", "CrimeLatLonXY1990_Size3.csv", "smallFile.txt", "CrimeLatLonXY.csv"};
+        List<Path> paths = new ArrayList<>();
+        for (String f : files) {
+            paths.add(Paths.get(f));
+        }
+
+        try (AsyncBlockReader reader = new AsyncBlockReader(64 << 10, 4, 2)) {
+            long start = System.nanoTime();
+            List<String> roots = reader.roots(paths);
+            long elapsed = System.nanoTime() - start;
+
+            for (int i = 0; i < files.length; i++) {
+                System.out.println(roots.get(i) + "  " + files[i]);
+            }
+            System.out.println("Read " + files.length + " files with " + reader.getQueueDepth() + " reads of "
+                    + (reader.getBlockSize() >> 10) + " KiB in flight each in " + elapsed / 1_000_000 + " ms");
+        }
+    }
+}
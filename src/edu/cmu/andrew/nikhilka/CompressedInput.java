@@ -0,0 +1,383 @@
+/**
+ * @author Nikhil Kashyap
+ */
+package edu.cmu.andrew.nikhilka;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * This class opens plain, gzip and BGZF compressed files for the tree builders, so archived files are hashed
+ * straight from the compressed bytes without a temporary copy. The lines, and therefore the roots, are exactly those
+ * of the uncompressed file.
+ *
+ * BGZF is gzip cut into independent members of at most 64 KiB, each storing its own compressed size, so the members
+ * are found without inflating anything and are inflated in parallel on the common fork join pool. Ordinary gzip,
+ * including files of several concatenated members, has no such index: it is inflated on a thread of its own while
+ * the calling thread hashes the lines. Zstandard files are recognised but need a zstd library, which this project
+ * does not have.
+ */
+public class CompressedInput {
+
+    public static final int PLAIN = 0;
+    public static final int GZIP = 1;
+    public static final int BGZF = 2;
+    public static final int ZSTD = 3;
+
+    private static final int ZSTD_MAGIC = 0xFD2FB528;
+    private static final int BGZF_MAX_INPUT = 0xFF00;
+    private static final int BGZF_MAX_OUTPUT = 1 << 16;
+    private static final int PIPELINE_THRESHOLD = 1 << 20;
+    private static final int CHUNK_SIZE = 1 << 18;
+
+    /**
+     * The empty block every BGZF file ends with.
+     */
+    private static final byte[] BGZF_EOF = {
+            0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0, 0x1b, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0
+    };
+
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    /**
+     * Finds the format of a file from its first bytes.
+     * @return
+     * PLAIN, GZIP, BGZF or ZSTD
+     */
+    public static int detect(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 512))) {
+            byte[] header = in.readNBytes(12);
+            if (header.length >= 4 && readIntLE(header, 0) == ZSTD_MAGIC)
+                return ZSTD;
+            if (header.length < 10 || (header[0] & 0xFF) != 0x1f || (header[1] & 0xFF) != 0x8b || header[2] != 8)
+                return PLAIN;
+            if (header.length == 12 && header[3] == 4)
+                return blockSize(in.readNBytes(readShortLE(header, 10))) > 0 ? BGZF : GZIP;
+            return GZIP;
+        }
+    }
+
+    /**
+     * Opens a file for sequential reading, inflating it if it is gzip or BGZF compressed.
+     * @exception IOException
+     * Indicates that the file could not be opened or is zstd compressed
+     */
+    public static InputStream open(Path file) throws IOException {
+        int format = detect(file);
+        if (format == ZSTD)
+            throw new IOException(file + " is zstd compressed, decompress it first");
+
+        InputStream in = Files.newInputStream(file);
+        return format == PLAIN ? in : new GZIPInputStream(in, 1 << 16);
+    }
+
+    /**
+     * Passes each line of a plain or compressed file to the consumer, using the fastest way the format allows.
+     * Theta(n), linear in the size of the uncompressed file
+     * @param file
+     * Plain, gzip or BGZF file
+     * @param consumer
+     * Receives every line of the uncompressed file in order, always on the calling thread
+     */
+    public static void readLines(Path file, LineReader.LineConsumer consumer) throws IOException {
+        int format = detect(file);
+        if (format == BGZF) {
+            readBgzf(file, consumer);
+        } else if (format == GZIP && Files.size(file) > PIPELINE_THRESHOLD) {
+            readPipelined(file, consumer);
+        } else {
+            try (InputStream in = open(file)) {
+                LineReader.readAll(in, consumer);
+            }
+        }
+    }
+
+    /**
+     * Compresses a stream into BGZF, which any gzip tool can still read but readLines inflates in parallel.
+     * Theta(n), linear in the size of the stream
+     * @param in
+     * Stream to compress, it is not closed
+     * @param out
+     * Stream receiving the BGZF blocks, it is not closed
+     */
+    public static void compressBgzf(InputStream in, OutputStream out) throws IOException {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        CRC32 crc = new CRC32();
+        byte[] input = new byte[BGZF_MAX_INPUT];
+        byte[] block = new byte[1 << 16];
+
+        try {
+            int read;
+            while ((read = in.readNBytes(input, 0, input.length)) > 0) {
+                deflater.reset();
+                deflater.setInput(input, 0, read);
+                deflater.finish();
+                int length = 18;
+                while (!deflater.finished() && length < block.length - 8) {
+                    length += deflater.deflate(block, length, block.length - 8 - length);
+                }
+                //64 KiB of input can not grow past a block, but a corrupt deflater must not write a broken file
+                if (!deflater.finished())
+                    throw new IllegalStateException("BGZF block overflow");
+
+                crc.reset();
+                crc.update(input, 0, read);
+                System.arraycopy(BGZF_EOF, 0, block, 0, 16);
+                writeShortLE(block, 16, length + 8 - 1);
+                writeIntLE(block, length, (int) crc.getValue());
+                writeIntLE(block, length + 4, read);
+                out.write(block, 0, length + 8);
+            }
+            out.write(BGZF_EOF);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Reads the BGZF blocks one after the other, inflates up to a few per thread of the common pool at once and feeds
+     * the inflated blocks to the LineReader in file order.
+     */
+    private static void readBgzf(Path file, LineReader.LineConsumer consumer) throws IOException {
+        LineReader reader = new LineReader(consumer);
+        int window = Math.max(2, ForkJoinPool.commonPool().getParallelism() * 4);
+        ArrayDeque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            byte[] block;
+            while ((block = nextBlock(in)) != null) {
+                byte[] compressed = block;
+                pending.add(CompletableFuture.supplyAsync(() -> inflate(compressed)));
+                if (pending.size() >= window)
+                    feed(reader, pending.poll());
+            }
+            while (!pending.isEmpty()) {
+                feed(reader, pending.poll());
+            }
+        } finally {
+            for (CompletableFuture<byte[]> left : pending) {
+                left.cancel(false);
+            }
+        }
+        reader.finish();
+    }
+
+    private static void feed(LineReader reader, CompletableFuture<byte[]> block) throws IOException {
+        byte[] data;
+        try {
+            data = block.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException)
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            throw e;
+        }
+        reader.feed(data, 0, data.length);
+    }
+
+    /**
+     * Reads the next BGZF block.
+     * @return
+     * The deflate data of the block followed by its 8 byte trailer, or null at the end of the file
+     */
+    private static byte[] nextBlock(DataInputStream in) throws IOException {
+        byte[] header = in.readNBytes(12);
+        if (header.length == 0)
+            return null;
+        if (header.length < 12 || (header[0] & 0xFF) != 0x1f || (header[1] & 0xFF) != 0x8b || header[2] != 8
+                || header[3] != 4)
+            throw new IOException("not a BGZF block");
+
+        byte[] extra = new byte[readShortLE(header, 10)];
+        in.readFully(extra);
+        int size = blockSize(extra);
+        if (size <= 0)
+            throw new IOException("gzip member without a BGZF block size");
+
+        //the rest holds at least the 8 byte trailer
+        if (size - 12 - extra.length < 8)
+            throw new IOException("corrupt BGZF block");
+        byte[] rest = new byte[size - 12 - extra.length];
+        in.readFully(rest);
+        return rest;
+    }
+
+    /**
+     * Finds the "BC" subfield of a gzip header.
+     * @return
+     * Total size of the block in bytes, or 0 if the header has no BGZF block size
+     */
+    private static int blockSize(byte[] extra) {
+        for (int i = 0; i + 4 <= extra.length; ) {
+            int length = readShortLE(extra, i + 2);
+            if (extra[i] == 'B' && extra[i + 1] == 'C' && length == 2 && i + 6 <= extra.length)
+                return readShortLE(extra, i + 4) + 1;
+            i += 4 + length;
+        }
+        return 0;
+    }
+
+    private static byte[] inflate(byte[] block) {
+        int deflated = block.length - 8;
+        //ISIZE is read from the file, a BGZF block never holds more than 64 KiB
+        int size = readIntLE(block, deflated + 4);
+        if (size < 0 || size > BGZF_MAX_OUTPUT)
+            throw new UncheckedIOException(new IOException("corrupt BGZF block"));
+        byte[] data = new byte[size];
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(block, 0, deflated);
+
+        try {
+            int length = 0;
+            while (!inflater.finished() && length < data.length) {
+                int inflated = inflater.inflate(data, length, data.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                length += inflated;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, length);
+            if (length != data.length || (int) crc.getValue() != readIntLE(block, deflated))
+                throw new IOException("corrupt BGZF block");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (DataFormatException e) {
+            throw new UncheckedIOException(new IOException("corrupt BGZF block", e));
+        }
+        return data;
+    }
+
+    /**
+     * Inflates an ordinary gzip file on a second thread, handing full chunks over a small queue, while the calling
+     * thread splits and hashes the lines.
+     */
+    private static void readPipelined(Path file, LineReader.LineConsumer consumer) throws IOException {
+        BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(3);
+        BlockingQueue<Chunk> full = new ArrayBlockingQueue<>(4);
+        Chunk end = new Chunk(0);
+        IOException[] failure = new IOException[1];
+
+        for (int i = 0; i < 3; i++) {
+            free.add(new Chunk(CHUNK_SIZE));
+        }
+
+        InputStream in = open(file);
+        Thread inflater = new Thread(() -> {
+            try {
+                while (true) {
+                    Chunk chunk = free.take();
+                    chunk.length = in.readNBytes(chunk.data, 0, chunk.data.length);
+                    if (chunk.length == 0)
+                        break;
+                    full.put(chunk);
+                }
+            } catch (IOException e) {
+                failure[0] = e;
+            } catch (InterruptedException e) {
+                return;
+            }
+            //the queue hands over failure[0] and every chunk length to the reading thread
+            full.add(end);
+        }, "gzip-inflater");
+        inflater.setDaemon(true);
+        inflater.start();
+
+        LineReader reader = new LineReader(consumer);
+        try {
+            Chunk chunk;
+            while ((chunk = full.take()) != end) {
+                reader.feed(chunk.data, 0, chunk.length);
+                free.put(chunk);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while reading " + file, e);
+        } finally {
+            inflater.interrupt();
+            in.close();
+        }
+
+        if (failure[0] != null)
+            throw failure[0];
+        reader.finish();
+    }
+
+    /**
+     * A buffer of inflated bytes passed between the two threads of readPipelined.
+     */
+    private static final class Chunk {
+        final byte[] data;
+        int length;
+
+        Chunk(int capacity) {
+            data = new byte[capacity];
+        }
+    }
+
+    private static void writeShortLE(byte[] data, int offset, int value) {
+        data[offset] = (byte) value;
+        data[offset + 1] = (byte) (value >>> 8);
+    }
+
+    private static void writeIntLE(byte[] data, int offset, int value) {
+        writeShortLE(data, offset, value);
+        writeShortLE(data, offset + 2, value >>> 16);
+    }
+
+    private static int readShortLE(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8;
+    }
+
+    private static int readIntLE(byte[] data, int offset) {
+        return readShortLE(data, offset) | readShortLE(data, offset + 2) << 16;
+    }
+
+    //Main function checking that compressed copies of the files have the roots of the files themselves
+    public static void main(String[] args) throws Exception {
+        String[] files = {"CrimeLatLonXY1990_Size2.csv", "CrimeLatLonXY1990_Size3.csv", "smallFile.txt", "CrimeLatLonXY.csv"};
+        Path directory = Files.createTempDirectory("compressed");
+
+        for (String f : files) {
+            Path gzip = directory.resolve(f + ".gz");
+            Path bgzf = directory.resolve(f + ".bgz");
+            try (InputStream in = Files.newInputStream(Paths.get(f));
+                 OutputStream out = new GZIPOutputStream(Files.newOutputStream(gzip))) {
+                in.transferTo(out);
+            }
+            try (InputStream in = Files.newInputStream(Paths.get(f));
+                 OutputStream out = new BufferedOutputStream(Files.newOutputStream(bgzf))) {
+                compressBgzf(in, out);
+            }
+
+            System.out.println("Calculating roots for file : " + f);
+            for (Path p : new Path[]{Paths.get(f), gzip, bgzf}) {
+                try (OffHeapMerkleTree tree = new OffHeapMerkleTree(p.toString())) {
+                    System.out.println("  " + tree.getRoot() + "  " + new String[]{"plain", "gzip", "bgzf"}[detect(p)]
+                            + ", " + Files.size(p) + " bytes");
+                }
+            }
+            Files.delete(gzip);
+            Files.delete(bgzf);
+        }
+        Files.delete(directory);
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * @author Nikhil Kashyap
+ */
+package edu.cmu.andrew.nikhilka;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * This class splits an arbitrary stream of bytes into chunks whose boundaries depend on the content, using the Gear
+ * rolling hash with the normalized chunking of FastCDC. Because a boundary only depends on the bytes just before it,
+ * inserting or removing bytes moves the boundaries near the change only, and every other chunk keeps its hash.
+ * Each chunk is hashed with SHA-256 while it is read, so chunks are never buffered.
+ */
+public class ContentDefinedChunker {
+
+    /**
+     * Receives each chunk found by a ContentDefinedChunker.
+     */
+    public interface ChunkConsumer {
+        void accept(long offset, int length, byte[] digest) throws IOException;
+    }
+
+    /**
+     * GEAR - one random 64 bit value per byte value, from a fixed seed so every run chunks the same way
+     */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        SplittableRandom random = new SplittableRandom(0x4D65726B6C65L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /**
+     * minSize, averageSize, maxSize - bounds of a chunk in bytes
+     * smallMask - used before averageSize is reached, one bit harder to match than the average
+     * largeMask - used after averageSize is reached, one bit easier to match than the average
+     * fingerprint - Gear hash of the current chunk
+     * chunkStart, chunkLength - position in the stream and length of the current chunk
+     */
+    private final ChunkConsumer consumer;
+    private final int minSize;
+    private final int averageSize;
+    private final int maxSize;
+    private final long smallMask;
+    private final long largeMask;
+    private final MessageDigest digest;
+    private long fingerprint;
+    private long chunkStart;
+    private int chunkLength;
+
+    /**
+     * Creates a chunker with the given chunk size bounds.
+     * @param minSize
+     * Smallest chunk in bytes, except for the last chunk of a stream
+     * @param averageSize
+     * Targeted average chunk size in bytes, rounded down to a power of two
+     * @param maxSize
+     * Largest chunk in bytes
+     * @precondition
+     * 0 &lt; minSize &lt;= averageSize &lt;= maxSize and averageSize &gt;= 4
+     */
+    public ContentDefinedChunker(int minSize, int averageSize, int maxSize, ChunkConsumer consumer)
+            throws NoSuchAlgorithmException {
+        if (minSize <= 0 || minSize > averageSize || averageSize > maxSize || averageSize < 4)
+            throw new IllegalArgumentException("chunk sizes must satisfy 0 < min <= avg <= max and avg >= 4");
+
+        this.consumer = consumer;
+        this.minSize = minSize;
+        this.averageSize = averageSize;
+        this.maxSize = maxSize;
+        int bits = 31 - Integer.numberOfLeadingZeros(averageSize);
+        //Gear shifts left, so the high bits depend on the most bytes and make the best boundaries
+        smallMask = -1L << (64 - (bits + 1));
+        largeMask = -1L << (64 - (bits - 1));
+        digest = MessageDigest.getInstance("SHA-256");
+    }
+
+    /**
+     * Finds the chunk boundaries in the given bytes.
+     * Theta(n), linear in the number of bytes fed
+     * @postcondition
+     * Every chunk ending inside the range has been passed to the consumer, the rest of the current chunk is hashed.
+     */
+    public void feed(byte[] buffer, int offset, int length) throws IOException {
+        int end = offset + length;
+        int hashed = offset;
+
+        for (int i = offset; i < end; i++) {
+            chunkLength++;
+            if (chunkLength < minSize)
+                continue;
+
+            fingerprint = (fingerprint << 1) + GEAR[buffer[i] & 0xFF];
+            long mask = chunkLength < averageSize ? smallMask : largeMask;
+            if ((fingerprint & mask) == 0 || chunkLength == maxSize) {
+                digest.update(buffer, hashed, i + 1 - hashed);
+                hashed = i + 1;
+                endChunk();
+            }
+        }
+
+        digest.update(buffer, hashed, end - hashed);
+    }
+
+    /**
+     * Passes the last, possibly short, chunk to the consumer.
+     */
+    public void finish() throws IOException {
+        if (chunkLength > 0)
+            endChunk();
+    }
+
+    /**
+     * Reads the whole stream and passes each chunk to the consumer.
+     * Theta(n), linear in the size of the stream
+     * @param in
+     * Stream to read, it is not closed by this method
+     */
+    public void readAll(InputStream in) throws IOException {
+        byte[] buffer = new byte[1 << 16];
+        int read;
+
+        while ((read = in.read(buffer)) != -1) {
+            feed(buffer, 0, read);
+        }
+        finish();
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getAverageSize() {
+        return averageSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    private void endChunk() throws IOException {
+        consumer.accept(chunkStart, chunkLength, digest.digest());
+        chunkStart += chunkLength;
+        chunkLength = 0;
+        fingerprint = 0;
+    }
+
+    //Main function to show that inserting bytes into a file only changes the chunks around the insertion
+    public static void main(String[] args) throws Exception {
+        String f = "CrimeLatLonXY.csv";
+        byte[] original = Files.readAllBytes(Paths.get(f));
+        byte[] text = new byte[20_000];
+        SplittableRandom random = new SplittableRandom(42);
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte) ('a' + random.nextInt(26));
+        }
+        byte[] inserted = new byte[original.length + text.length];
+        int at = original.length / 3;
+        System.arraycopy(original, 0, inserted, 0, at);
+        System.arraycopy(text, 0, inserted, at, text.length);
+        System.arraycopy(original, at, inserted, at + text.length, original.length - at);
+
+        Path copy = Files.createTempFile("merkle-chunks", ".bin");
+        Files.write(copy, inserted);
+        try (OffHeapMerkleTree before = OffHeapMerkleTree.ofChunks(f, 2048, 8192, 65536, null);
+             OffHeapMerkleTree after = OffHeapMerkleTree.ofChunks(copy.toString(), 2048, 8192, 65536, null)) {
+            System.out.println("Chunks before insertion   : " + before.getLineCount() + ", root " + before.getRoot());
+            System.out.println("Chunks after insertion    : " + after.getLineCount() + ", root " + after.getRoot());
+            System.out.println("Chunks at other positions : " + after.diff(before, Integer.MAX_VALUE).length);
+            System.out.println("Chunks that changed       : "
+                    + Arrays.toString(after.diffByContent(before, Integer.MAX_VALUE)));
+        } finally {
+            Files.delete(copy);
+        }
+    }
+}
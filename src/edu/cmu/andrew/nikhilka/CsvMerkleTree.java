@@ -0,0 +1,388 @@
+/**
+ * @author Nikhil Kashyap
+ */
+package edu.cmu.andrew.nikhilka;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * This class builds a Merkle tree over the records of a CSV file instead of its raw lines. The first record is the
+ * header, every other record is a leaf. Fields are canonicalized by CsvRecordReader and put in the order of their
+ * sorted column names, so whitespace, line ends and the order of the columns do not change the root.
+ *
+ * A field is hashed together with its column name as SHA-256(name 0x1F value). In the default mode the leaf of a
+ * record is the hash of all its fields written as name 0x1F value 0x1E. In per-column mode the leaf of a record is
+ * the root of a small Merkle tree over its field hashes, which lets a single field be proven on its own.
+ */
+public class CsvMerkleTree implements Closeable {
+
+    private static final byte UNIT_SEPARATOR = 0x1F;
+    private static final byte RECORD_SEPARATOR = 0x1E;
+
+    /**
+     * file - the CSV file, kept to read single records back for field proofs
+     * perColumn - true if every record leaf is the root of a tree over its fields
+     * columns - canonical column names in sorted order
+     * order - order[i] is the position in the file of the column columns[i]
+     * recordOffsets, recordCount - byte offset in the file of every record after the header
+     * tree - the tree over the record leafs
+     */
+    private final String file;
+    private final boolean perColumn;
+    private String[] columns;
+    private int[] order;
+    private byte[][] columnNames;
+    private long[] recordOffsets;
+    private int recordCount;
+    private OffHeapMerkleTree tree;
+
+    /**
+     * Parses a CSV file and builds the tree over its records.
+     * Theta(n), linear in the size of the file
+     * @param file
+     * A valid CSV file with a header of distinct column names and at least one record
+     * @param perColumn
+     * true to build a tree over the fields of every record so single fields can be proven
+     */
+    public CsvMerkleTree(String file, boolean perColumn) throws IOException {
+        this.file = file;
+        this.perColumn = perColumn;
+        recordOffsets = new long[1024];
+        recordCount = 0;
+
+        OffHeapHashStore leaves = new OffHeapHashStore();
+        byte[][] fieldHashes = new byte[0][];
+        byte[][] canonical = {new byte[256]};
+
+        try (InputStream in = new FileInputStream(file)) {
+            CsvRecordReader.readAll(in, (offset, data, ends, count) -> {
+                if (columns == null) {
+                    readHeader(data, ends, count);
+                    return;
+                }
+                checkFieldCount(offset, count);
+                addOffset(offset);
+                leaves.add(perColumn ? columnTreeRoot(fieldHashes(data, ends)) : recordDigest(data, ends, canonical));
+            });
+        } catch (IOException | RuntimeException e) {
+            leaves.close();
+            throw e;
+        }
+
+        if (recordCount == 0) {
+            leaves.close();
+            throw new IllegalArgumentException("file has no records");
+        }
+        tree = new OffHeapMerkleTree(leaves, null);
+    }
+
+    public String getRoot() {
+        return tree.getRoot();
+    }
+
+    public byte[] getRootDigest() {
+        return tree.getRootDigest();
+    }
+
+    /**
+     * Number of records, not counting the header.
+     */
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Canonical column names in the order their fields are hashed.
+     */
+    public String[] getColumns() {
+        return columns.clone();
+    }
+
+    /**
+     * Builds the audit path of a whole record.
+     * Theta(log n), logarithmic in the number of records
+     * @param record
+     * Position of the record, 0 &lt;= record &lt; getRecordCount()
+     */
+    public MerkleProof getRecordProof(int record) {
+        return tree.getProof(record);
+    }
+
+    /**
+     * Reads the canonical value of one field back from the file.
+     * Theta(m), linear in the length of the record
+     * @param record
+     * Position of the record, 0 &lt;= record &lt; getRecordCount()
+     * @param column
+     * Canonical name of the column
+     */
+    public String getField(int record, String column) throws IOException {
+        byte[][] fields = readRecord(record);
+        return new String(fields[order[columnIndex(column)]], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Builds the proof of a single field: the path from the field to its record leaf and from the record to the root.
+     * Theta(m + log n), linear in the length of the record and logarithmic in the number of records
+     * @param record
+     * Position of the record, 0 &lt;= record &lt; getRecordCount()
+     * @param column
+     * Canonical name of the column
+     * @precondition
+     * The tree has been built in per-column mode
+     */
+    public FieldProof getFieldProof(int record, String column) throws IOException {
+        if (!perColumn)
+            throw new IllegalStateException("field proofs need a tree built in per-column mode");
+
+        byte[][] fields = readRecord(record);
+        byte[][] hashes = new byte[columns.length][];
+        for (int i = 0; i < columns.length; i++) {
+            hashes[i] = fieldDigest(columnNames[i], fields[order[i]], 0, fields[order[i]].length);
+        }
+
+        int index = columnIndex(column);
+        byte[][][] levels = columnTree(hashes);
+        byte[][] siblings = new byte[levels.length - 1][];
+        int position = index;
+        for (int level = 0; level < siblings.length; level++) {
+            siblings[level] = levels[level][position ^ 1];
+            position >>>= 1;
+        }
+        return new FieldProof(column, new MerkleProof(index, siblings), tree.getProof(record));
+    }
+
+    @Override
+    public void close() throws IOException {
+        tree.close();
+    }
+
+    /**
+     * Hash of a single canonical field together with its column name.
+     */
+    static byte[] fieldDigest(byte[] name, byte[] data, int offset, int length) {
+        byte[] text = new byte[name.length + 1 + length];
+        System.arraycopy(name, 0, text, 0, name.length);
+        text[name.length] = UNIT_SEPARATOR;
+        System.arraycopy(data, offset, text, name.length + 1, length);
+        return MerkleTree.digest(text, 0, text.length);
+    }
+
+    /**
+     * Takes the column names from the header. Fields are found by name, so every name has to be unique.
+     * @exception IOException
+     * Indicates that two columns have the same canonical name
+     */
+    private void readHeader(byte[] data, int[] ends, int count) throws IOException {
+        String[] names = new String[count];
+        Integer[] sorted = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            int start = i == 0 ? 0 : ends[i - 1];
+            names[i] = new String(data, start, ends[i] - start, StandardCharsets.UTF_8);
+            sorted[i] = i;
+        }
+        Arrays.sort(sorted, Comparator.comparing((Integer i) -> names[i]));
+        for (int i = 1; i < count; i++) {
+            if (names[sorted[i]].equals(names[sorted[i - 1]]))
+                throw new IOException("the header has two columns named \"" + names[sorted[i]] + "\"");
+        }
+
+        columns = new String[count];
+        columnNames = new byte[count][];
+        order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = sorted[i];
+            columns[i] = names[sorted[i]];
+            columnNames[i] = columns[i].getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private void checkFieldCount(long offset, int count) throws IOException {
+        if (count != columns.length)
+            throw new IOException("record at offset " + offset + " has " + count + " fields, the header has "
+                    + columns.length);
+    }
+
+    private void addOffset(long offset) {
+        if (recordCount == recordOffsets.length)
+            recordOffsets = Arrays.copyOf(recordOffsets, recordCount * 2);
+        recordOffsets[recordCount++] = offset;
+    }
+
+    private byte[][] fieldHashes(byte[] data, int[] ends) {
+        byte[][] hashes = new byte[columns.length][];
+        for (int i = 0; i < columns.length; i++) {
+            int field = order[i];
+            int start = field == 0 ? 0 : ends[field - 1];
+            hashes[i] = fieldDigest(columnNames[i], data, start, ends[field] - start);
+        }
+        return hashes;
+    }
+
+    /**
+     * Writes every field as name 0x1F value 0x1E in column order into a reused buffer and hashes it.
+     */
+    private byte[] recordDigest(byte[] data, int[] ends, byte[][] canonical) {
+        int length = 0;
+        for (int i = 0; i < columns.length; i++) {
+            int field = order[i];
+            int start = field == 0 ? 0 : ends[field - 1];
+            int fieldLength = ends[field] - start;
+            int needed = length + columnNames[i].length + fieldLength + 2;
+            if (needed > canonical[0].length)
+                canonical[0] = Arrays.copyOf(canonical[0], Math.max(needed, canonical[0].length * 2));
+
+            byte[] out = canonical[0];
+            System.arraycopy(columnNames[i], 0, out, length, columnNames[i].length);
+            length += columnNames[i].length;
+            out[length++] = UNIT_SEPARATOR;
+            System.arraycopy(data, start, out, length, fieldLength);
+            length += fieldLength;
+            out[length++] = RECORD_SEPARATOR;
+        }
+        return MerkleTree.digest(canonical[0], 0, length);
+    }
+
+    private static byte[] columnTreeRoot(byte[][] hashes) {
+        byte[][][] levels = columnTree(hashes);
+        return levels[levels.length - 1][0];
+    }
+
+    /**
+     * Builds all levels of the tree over the field hashes of one record, padding odd levels like MerkleTree.
+     */
+    private static byte[][][] columnTree(byte[][] hashes) {
+        int height = 1;
+        while ((1 << height) < hashes.length) {
+            height++;
+        }
+
+        byte[][][] levels = new byte[height + 1][][];
+        levels[0] = pad(hashes);
+        for (int level = 1; level <= height; level++) {
+            byte[][] below = levels[level - 1];
+            byte[][] nodes = new byte[below.length / 2][];
+            for (int i = 0; i < nodes.length; i++) {
+                nodes[i] = MerkleTree.combineDigests(below[2 * i], below[2 * i + 1]);
+            }
+            levels[level] = level == height ? nodes : pad(nodes);
+        }
+        return levels;
+    }
+
+    private static byte[][] pad(byte[][] nodes) {
+        if (nodes.length % 2 == 0)
+            return nodes;
+        byte[][] padded = Arrays.copyOf(nodes, nodes.length + 1);
+        padded[nodes.length] = nodes[nodes.length - 1];
+        return padded;
+    }
+
+    private int columnIndex(String column) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].equals(column))
+                return i;
+        }
+        throw new IllegalArgumentException("no column named " + column);
+    }
+
+    /**
+     * Reads the canonical fields of one record back from the file, in file order.
+     */
+    private byte[][] readRecord(int record) throws IOException {
+        if (record < 0 || record >= recordCount)
+            throw new IndexOutOfBoundsException("record " + record + " is outside of a file with " + recordCount
+                    + " records");
+
+        byte[][][] result = new byte[1][][];
+        CsvRecordReader reader = new CsvRecordReader((offset, data, ends, count) -> {
+            if (result[0] != null)
+                return;
+            byte[][] fields = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                int start = i == 0 ? 0 : ends[i - 1];
+                fields[i] = Arrays.copyOfRange(data, start, ends[i]);
+            }
+            result[0] = fields;
+        });
+
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            in.seek(recordOffsets[record]);
+            byte[] buffer = new byte[8192];
+            int read;
+            while (result[0] == null && (read = in.read(buffer)) != -1) {
+                reader.feed(buffer, 0, read);
+            }
+            if (result[0] == null)
+                reader.finish();
+        }
+        return result[0];
+    }
+
+    /**
+     * This class holds the proof that a field value belongs to a record of a CSV file with a given root.
+     */
+    public static class FieldProof {
+
+        /**
+         * column - canonical name of the proven column
+         * fieldPath - audit path from the field hash to the record leaf
+         * recordPath - audit path from the record leaf to the root
+         */
+        private final String column;
+        private final MerkleProof fieldPath;
+        private final MerkleProof recordPath;
+
+        public FieldProof(String column, MerkleProof fieldPath, MerkleProof recordPath) {
+            this.column = column;
+            this.fieldPath = fieldPath;
+            this.recordPath = recordPath;
+        }
+
+        /**
+         * Checks that the given canonical value is the field of the column in the record of the tree with that root.
+         * Theta(log m + log n), logarithmic in the number of columns and records
+         * @param value
+         * Canonical value of the field
+         * @param root
+         * Hex root of the CSV tree
+         * @return
+         * true if the value leads to the root, else false
+         */
+        public boolean verify(String value, String root) {
+            byte[] text = value.getBytes(StandardCharsets.UTF_8);
+            byte[] field = fieldDigest(column.getBytes(StandardCharsets.UTF_8), text, 0, text.length);
+            return MessageDigest.isEqual(recordPath.computeRoot(fieldPath.computeRoot(field)), MerkleTree.fromHex(root));
+        }
+    }
+
+    //Main function to build record aware roots of the crime files and prove a single field
+    public static void main(String[] args) throws Exception {
+        String[] files = {"CrimeLatLonXY1990_Size2.csv", "CrimeLatLonXY1990_Size3.csv", "CrimeLatLonXY.csv"};
+
+        for (String f : files) {
+            long start = System.nanoTime();
+            try (CsvMerkleTree records = new CsvMerkleTree(f, false);
+                 CsvMerkleTree fields = new CsvMerkleTree(f, true)) {
+                long millis = (System.nanoTime() - start) / 1000000;
+                System.out.println("Calculating root for file : " + f + " (" + records.getRecordCount() + " records, "
+                        + millis + " ms)");
+                System.out.println("Record root      : " + records.getRoot());
+                System.out.println("Per-column root  : " + fields.getRoot());
+
+                String column = fields.getColumns()[0];
+                String value = fields.getField(0, column);
+                System.out.println("Field " + column + " of record 0 is " + value + ", proof : "
+                        + fields.getFieldProof(0, column).verify(value, fields.getRoot()));
+            }
+            System.out.println("-----------------------------------------------------------------------------------------------------------");
+        }
+    }
+}
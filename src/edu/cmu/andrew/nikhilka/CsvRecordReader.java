@@ -0,0 +1,199 @@
+/**
+ * @author Nikhil Kashyap
+ */
+package edu.cmu.andrew.nikhilka;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * This class splits a stream of CSV bytes into records and canonical fields without creating Strings. Fields are
+ * separated by ',' and may be quoted with '"' ("" inside quotes is a single quote), records end at "\n", "\r" or
+ * "\r\n" outside of quotes. Canonical means unquoted fields lose their surrounding spaces and tabs and quoted fields
+ * lose their quotes, so cosmetic differences such as trailing whitespace or CRLF line ends do not change a field.
+ * Blank records are skipped; a record holding only a quoted empty field ("") is not blank and is kept. Like
+ * LineReader the bytes are pushed in with feed.
+ */
+public class CsvRecordReader {
+
+    /**
+     * Receives each record found by a CsvRecordReader. Field i is data[ends[i - 1] .. ends[i]) (field 0 starts at 0).
+     * The arrays are reused and only valid for the duration of the call.
+     */
+    public interface RecordConsumer {
+        void accept(long offset, byte[] data, int[] ends, int count) throws IOException;
+    }
+
+    /**
+     * consumer - receives every record
+     * data, length - canonical bytes of the fields of the current record, one after another
+     * ends, count - end of every finished field of the current record in data
+     * fieldStart - index in data where the current field starts
+     * keepLength - bytes of the current field which came from inside quotes and are never trimmed
+     * inQuotes - true between the opening and closing quote of a field
+     * quoted - true once a field of the current record has been quoted, so the record is not blank even if empty
+     * quoteSeen - true when the last byte inside quotes was a quote, which either closes the field or escapes a quote
+     * skipLineFeed - true when the last byte was a "\r" record end, so a following "\n" belongs to it
+     * position - offset in the stream of the next byte fed
+     * recordStart - offset of the first byte of the current record, -1 between records
+     */
+    private final RecordConsumer consumer;
+    private byte[] data;
+    private int length;
+    private int[] ends;
+    private int count;
+    private int fieldStart;
+    private int keepLength;
+    private boolean inQuotes;
+    private boolean quoted;
+    private boolean quoteSeen;
+    private boolean skipLineFeed;
+    private long position;
+    private long recordStart;
+
+    public CsvRecordReader(RecordConsumer consumer) {
+        this.consumer = consumer;
+        data = new byte[256];
+        ends = new int[16];
+        recordStart = -1;
+    }
+
+    /**
+     * Splits the given bytes into records and fields.
+     * Theta(n), linear in the number of bytes fed
+     * @param buffer
+     * Bytes read from the input
+     * @param offset
+     * Index of the first byte to use
+     * @param len
+     * Number of bytes to use
+     * @postcondition
+     * Every record terminated inside the range has been passed to the consumer, the unterminated rest is kept.
+     */
+    public void feed(byte[] buffer, int offset, int len) throws IOException {
+        int end = offset + len;
+
+        for (int i = offset; i < end; i++, position++) {
+            byte b = buffer[i];
+
+            if (inQuotes) {
+                if (quoteSeen) {
+                    quoteSeen = false;
+                    if (b == '"') {
+                        append(b);
+                        keepLength = length - fieldStart;
+                        continue;
+                    }
+                    inQuotes = false;
+                    //fall through, b is the first byte after the closing quote
+                } else {
+                    if (b == '"')
+                        quoteSeen = true;
+                    else
+                        append(b);
+                    keepLength = length - fieldStart;
+                    continue;
+                }
+            }
+
+            if (b == '\n' && skipLineFeed) {
+                skipLineFeed = false;
+                continue;
+            }
+            skipLineFeed = false;
+
+            if (b == '\n' || b == '\r') {
+                endRecord();
+                skipLineFeed = b == '\r';
+                continue;
+            }
+
+            if (recordStart < 0)
+                recordStart = position;
+
+            if (b == ',') {
+                endField();
+            } else if (b == '"' && length == fieldStart) {
+                inQuotes = true;
+                quoted = true;
+            } else if ((b == ' ' || b == '\t') && length == fieldStart) {
+                //leading whitespace of a field is not part of its canonical form
+            } else {
+                append(b);
+            }
+        }
+    }
+
+    /**
+     * Passes the last record to the consumer if the input did not end with a record terminator.
+     * Theta(1), constant time complexity
+     */
+    public void finish() throws IOException {
+        if (inQuotes && quoteSeen) {
+            inQuotes = false;
+            quoteSeen = false;
+        }
+        if (inQuotes)
+            throw new IOException("unterminated quoted field in record at offset " + recordStart);
+        endRecord();
+        skipLineFeed = false;
+    }
+
+    /**
+     * Reads the whole stream and passes each record to the consumer.
+     * Theta(n), linear in the size of the stream
+     * @param in
+     * Stream to read, it is not closed by this method
+     * @param consumer
+     * Receives every record of the stream
+     */
+    public static void readAll(InputStream in, RecordConsumer consumer) throws IOException {
+        CsvRecordReader reader = new CsvRecordReader(consumer);
+        byte[] buffer = new byte[1 << 16];
+        int read;
+
+        while ((read = in.read(buffer)) != -1) {
+            reader.feed(buffer, 0, read);
+        }
+        reader.finish();
+    }
+
+    private void append(byte b) {
+        if (length == data.length) {
+            byte[] grown = new byte[data.length * 2];
+            System.arraycopy(data, 0, grown, 0, length);
+            data = grown;
+        }
+        data[length++] = b;
+    }
+
+    private void endField() {
+        //trailing whitespace outside of quotes is not part of the canonical form either
+        while (length > fieldStart + keepLength && (data[length - 1] == ' ' || data[length - 1] == '\t')) {
+            length--;
+        }
+
+        if (count == ends.length) {
+            int[] grown = new int[ends.length * 2];
+            System.arraycopy(ends, 0, grown, 0, count);
+            ends = grown;
+        }
+        ends[count++] = length;
+        fieldStart = length;
+        keepLength = 0;
+    }
+
+    private void endRecord() throws IOException {
+        if (recordStart >= 0) {
+            endField();
+            //a record holding a single empty, unquoted field is a blank line
+            if (count > 1 || length > 0 || quoted)
+                consumer.accept(recordStart, data, ends, count);
+        }
+        quoted = false;
+        length = 0;
+        count = 0;
+        fieldStart = 0;
+        keepLength = 0;
+        recordStart = -1;
+    }
+}
@@ -0,0 +1,266 @@
+/**
+ * @author Nikhil Kashyap
+ */
+package edu.cmu.andrew.nikhilka;
+import java.io.IOException;
+import java.nio.charset.MalformedInputException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * This class builds one Merkle root for a whole directory. Every regular file below the directory is one leaf, the
+ * leafs are sorted by relative path (with '/' separators) and each leaf hashes the path with the root of the file, see
+ * entryDigest. The root of a text file is the root MerkleTree would find for it; an empty file, which MerkleTree
+ * cannot handle, has the hash of the empty line as its root. A file that is not valid UTF-8, e.g. an image or a git
+ * object, has no lines, so its root is built over its content defined chunks instead, see binaryRoot.
+ *
+ * File roots are remembered in a RootCache, so refresh only rebuilds the files whose size or modification time has
+ * changed, and those are rebuilt in parallel. A file written while it is hashed is not cached and is rebuilt by the
+ * next refresh.
+ */
+public class DirectoryMerkleTree {
+
+    private static final byte[] ENTRY_PREFIX = "merkle-dir-entry\0".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BINARY_PREFIX = "\u00FFmerkle-dir-binary\0".getBytes(StandardCharsets.ISO_8859_1);
+
+    /**
+     * directory - the directory the tree describes
+     * cache - remembered roots of the files, shared across refreshes
+     * threads - number of files built at the same time
+     * paths - relative paths of the files in leaf order
+     * fileRoots - fileRoots.get(i) is the hex root of paths.get(i)
+     * tree - the tree over the file leafs
+     * rebuilt - number of files whose root had to be calculated by the last refresh
+     */
+    private final Path directory;
+    private final RootCache cache;
+    private final int threads;
+    private List<String> paths;
+    private List<String> fileRoots;
+    private OffHeapMerkleTree tree;
+    private int rebuilt;
+
+    public DirectoryMerkleTree(Path directory) throws IOException {
+        this(directory, new RootCache(), Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Builds the tree of a directory.
+     * @param directory
+     * A directory holding at least one regular file
+     * @param cache
+     * Cache of file roots, e.g. loaded from a previous run
+     * @param threads
+     * Number of files built at the same time
+     */
+    public DirectoryMerkleTree(Path directory, RootCache cache, int threads) throws IOException {
+        this.directory = directory;
+        this.cache = cache;
+        this.threads = threads;
+        refresh();
+    }
+
+    /**
+     * Walks the directory again and rebuilds the root, calculating only the roots of new or changed files.
+     * Theta(f + c), linear in the number of files f and the size c of the changed files
+     * @postcondition
+     * The root describes the directory as it is now, the cache holds the root of every file.
+     */
+    public void refresh() throws IOException {
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(directory)) {
+            files = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        if (files.isEmpty())
+            throw new IllegalArgumentException("directory has no files");
+
+        List<String> names = new ArrayList<>();
+        for (Path file : files) {
+            names.add(directory.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/"));
+        }
+        Collections.sort(names);
+
+        String[] roots = new String[names.size()];
+        List<Callable<Void>> stale = new ArrayList<>();
+        for (int i = 0; i < names.size(); i++) {
+            Path file = directory.resolve(names.get(i));
+            roots[i] = cache.get(file);
+            if (roots[i] == null) {
+                int index = i;
+                stale.add(() -> {
+                    roots[index] = cache.computeAndPut(file, DirectoryMerkleTree::fileRoot);
+                    return null;
+                });
+            }
+        }
+        buildAll(stale);
+
+        OffHeapHashStore leaves = new OffHeapHashStore();
+        for (int i = 0; i < names.size(); i++) {
+            leaves.add(entryDigest(names.get(i), roots[i]));
+        }
+
+        if (tree != null)
+            tree.close();
+        tree = new OffHeapMerkleTree(leaves, null);
+        paths = names;
+        fileRoots = List.of(roots);
+        rebuilt = stale.size();
+    }
+
+    public String getRoot() {
+        return tree.getRoot();
+    }
+
+    /**
+     * Relative paths of the files in leaf order.
+     */
+    public List<String> getPaths() {
+        return Collections.unmodifiableList(paths);
+    }
+
+    /**
+     * Hex root of a single file of the directory.
+     * Theta(log f), logarithmic in the number of files
+     * @param path
+     * Relative path of the file with '/' separators
+     */
+    public String getFileRoot(String path) {
+        return fileRoots.get(position(path));
+    }
+
+    /**
+     * Audit path of a file entry, proving that the file with its root is part of the directory.
+     * Theta(log f), logarithmic in the number of files
+     * @param path
+     * Relative path of the file with '/' separators
+     */
+    public MerkleProof getProof(String path) {
+        return tree.getProof(position(path));
+    }
+
+    /**
+     * Number of files whose root was calculated, not taken from the cache, by the last refresh.
+     */
+    public int getRebuiltCount() {
+        return rebuilt;
+    }
+
+    public RootCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Leaf of a file entry: SHA-256("merkle-dir-entry" 0x00 path 0x00 root), with the path in UTF-8 and the root as its
+     * 32 raw bytes. The prefix keeps entry leafs apart from line hashes and the CSV field hashes, and a path cannot
+     * contain 0x00, so no two entries share the bytes that are hashed.
+     * Theta(1), constant in the length of the path
+     * @param path
+     * Relative path of the file with '/' separators
+     * @param root
+     * Hex root of the file
+     */
+    static byte[] entryDigest(String path, String root) {
+        byte[] name = path.getBytes(StandardCharsets.UTF_8);
+        byte[] text = new byte[ENTRY_PREFIX.length + name.length + 1 + OffHeapHashStore.DIGEST_LENGTH];
+        System.arraycopy(ENTRY_PREFIX, 0, text, 0, ENTRY_PREFIX.length);
+        System.arraycopy(name, 0, text, ENTRY_PREFIX.length, name.length);
+        System.arraycopy(MerkleTree.fromHex(root), 0, text, ENTRY_PREFIX.length + name.length + 1,
+                OffHeapHashStore.DIGEST_LENGTH);
+        return MerkleTree.digest(text, 0, text.length);
+    }
+
+    /**
+     * Root of a single file, the hash of the empty line for an empty file and binaryRoot for a file that is not text.
+     * Theta(n), linear in the size of the file
+     * @exception IOException
+     * If the file cannot be read, with the path of the file in the message
+     */
+    static String fileRoot(Path file) throws IOException {
+        try {
+            if (Files.size(file) == 0)
+                return MerkleTree.toHex(MerkleTree.digest(new byte[0], 0, 0));
+
+            try (OffHeapMerkleTree fileTree = new OffHeapMerkleTree(file.toString())) {
+                return fileTree.getRoot();
+            } catch (MalformedInputException e) {
+                return binaryRoot(file);
+            }
+        } catch (IOException e) {
+            throw new IOException(file + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Root of a file that is not valid UTF-8: SHA-256(0xFF "merkle-dir-binary" 0x00 root) over the raw root of the
+     * tree OffHeapMerkleTree.ofChunks builds for the file. The line root of a text file is the hash of valid UTF-8,
+     * which never holds the byte 0xFF, so a binary file cannot take the root of a text file.
+     * Theta(n), linear in the size of the file
+     */
+    static String binaryRoot(Path file) throws IOException {
+        try (OffHeapMerkleTree chunkTree = OffHeapMerkleTree.ofChunks(file.toString(), 2048, 8192, 65536, null)) {
+            byte[] text = new byte[BINARY_PREFIX.length + OffHeapHashStore.DIGEST_LENGTH];
+            System.arraycopy(BINARY_PREFIX, 0, text, 0, BINARY_PREFIX.length);
+            System.arraycopy(MerkleTree.fromHex(chunkTree.getRoot()), 0, text, BINARY_PREFIX.length,
+                    OffHeapHashStore.DIGEST_LENGTH);
+            return MerkleTree.toHex(MerkleTree.digest(text, 0, text.length));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void buildAll(List<Callable<Void>> tasks) throws IOException {
+        if (tasks.isEmpty())
+            return;
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, tasks.size())));
+        try {
+            for (Future<Void> result : pool.invokeAll(tasks)) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while building file roots", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("could not build a file root", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private int position(String path) {
+        int index = Collections.binarySearch(paths, path);
+        if (index < 0)
+            throw new IllegalArgumentException("no file " + path + " in " + directory);
+        return index;
+    }
+
+    //Main function to build the root of a directory twice, the second time only from the cache
+    public static void main(String[] args) throws Exception {
+        Path directory = Paths.get(args.length > 0 ? args[0] : ".");
+        RootCache cache = new RootCache(Paths.get(System.getProperty("java.io.tmpdir"), "merkle-roots.cache"));
+
+        DirectoryMerkleTree tree = new DirectoryMerkleTree(directory, cache, Runtime.getRuntime().availableProcessors());
+        System.out.println("Root of " + directory.toAbsolutePath().normalize() + " : " + tree.getRoot());
+        System.out.println("Files : " + tree.getPaths().size() + ", rebuilt : " + tree.getRebuiltCount());
+
+        tree.refresh();
+        System.out.println("Root after refresh : " + tree.getRoot() + ", rebuilt : " + tree.getRebuiltCount());
+        cache.save();
+    }
+}
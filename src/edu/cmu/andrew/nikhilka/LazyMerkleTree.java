@@ -0,0 +1,220 @@
+/**
+ * @author Nikhil Kashyap
+ */
+package edu.cmu.andrew.nikhilka;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * This class describes the same Merkle tree as MerkleTree, but does not hash anything while it is built. A node is
+ * hashed the first time it is needed for a root, a subtree hash or a proof, and is remembered afterwards. Updating a
+ * line only forgets the nodes on the path from that line to the root, so the next root costs Theta(log n) hashes.
+ *
+ * The padding of MerkleTree (duplicating the last node of an odd level) is not stored. Instead a node asked for past
+ * the end of a level is answered with the last real node of that level, which has the same hash.
+ */
+public class LazyMerkleTree {
+
+    /**
+     * lines - the bytes of every line of the file, i.e. the leafs before hashing
+     * lineCount - number of lines in lines that are in use
+     * counts - counts[level] is the number of real (not padded) nodes on a level, counts[0] == lineCount
+     * memo - memo[level][index] is the remembered hash of a node, null until it has been calculated
+     */
+    private byte[][] lines;
+    private int lineCount;
+    private int[] counts;
+    private byte[][][] memo;
+
+    /**
+     * Reads the lines of a file without hashing them.
+     * Theta(n), linear in the size of the file
+     * @param file
+     * Is a valid file containing at least one line of plain text.
+     */
+    public LazyMerkleTree(String file) throws IOException {
+        lines = new byte[1024][];
+        lineCount = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            LineReader.readAll(in, (buffer, offset, length) -> addLine(Arrays.copyOfRange(buffer, offset, offset + length)));
+        }
+        shape();
+    }
+
+    /**
+     * Creates a tree over the given lines without hashing them.
+     * @param text
+     * At least one line of plain text, without line terminators
+     */
+    public LazyMerkleTree(String[] text) {
+        lines = new byte[Math.max(1, text.length)][];
+        lineCount = 0;
+        for (String line : text) {
+            addLine(line.getBytes(StandardCharsets.UTF_8));
+        }
+        shape();
+    }
+
+    /**
+     * Hex Merkle root, the same value MerkleTree stores in merkleRoot. Only the nodes not remembered yet are hashed.
+     * Theta(n) the first time, Theta(log n) after an update and Theta(1) otherwise
+     */
+    public String getRoot() {
+        return MerkleTree.toHex(getRootDigest());
+    }
+
+    public byte[] getRootDigest() {
+        return node(counts.length - 1, 0).clone();
+    }
+
+    /**
+     * Hash of the subtree rooted at a node. Level 0 holds the leafs, so getSubtreeHash(0, i) is the hash of line i and
+     * getSubtreeHash(level, i) covers lines [i * 2^level, (i + 1) * 2^level).
+     * Theta(2^level) the first time, Theta(1) once remembered
+     * @param level
+     * Level of the node, 0 &lt;= level &lt;= getHeight()
+     * @param index
+     * Position of the node on its level, 0 &lt;= index &lt; getLevelSize(level)
+     * @return
+     * 32 byte digest of the node
+     */
+    public byte[] getSubtreeHash(int level, int index) {
+        if (level < 0 || level >= counts.length)
+            throw new IndexOutOfBoundsException("level " + level + " is outside of a tree of height " + getHeight());
+        if (index < 0 || index >= counts[level])
+            throw new IndexOutOfBoundsException("node " + index + " is outside of a level with " + counts[level] + " nodes");
+        return node(level, index).clone();
+    }
+
+    /**
+     * Builds the audit path of a line, hashing only the subtrees next to the path that are not remembered yet.
+     * Theta(log n) once the siblings are remembered
+     * @param index
+     * Position of the line, 0 &lt;= index &lt; getLineCount()
+     */
+    public MerkleProof getProof(int index) {
+        checkIndex(index);
+        byte[][] siblings = new byte[getHeight()][];
+        int position = index;
+
+        for (int level = 0; level < getHeight(); level++) {
+            //a copy, so a caller changing the proof cannot change the remembered hash
+            siblings[level] = node(level, position ^ 1).clone();
+            position >>>= 1;
+        }
+        return new MerkleProof(index, siblings);
+    }
+
+    /**
+     * Replaces a line and forgets the remembered hashes on the path from it to the root.
+     * Theta(log n), logarithmic time complexity
+     * @param index
+     * Position of the line, 0 &lt;= index &lt; getLineCount()
+     * @param line
+     * New plain text of the line, without line terminator
+     * @postcondition
+     * Every other remembered hash is kept, the next root request rehashes only the path of the line.
+     */
+    public void update(int index, String line) {
+        checkIndex(index);
+        lines[index] = line.getBytes(StandardCharsets.UTF_8);
+
+        int position = index;
+        for (int level = 0; level < counts.length; level++) {
+            if (memo[level] != null)
+                memo[level][position] = null;
+            position >>>= 1;
+        }
+    }
+
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * Number of levels above the leafs, which is also the length of every audit path.
+     */
+    public int getHeight() {
+        return counts.length - 1;
+    }
+
+    /**
+     * Number of real (not padded) nodes on a level.
+     */
+    public int getLevelSize(int level) {
+        return counts[level];
+    }
+
+    /**
+     * Returns the hash of a node, calculating and remembering it if needed. Positions past the end of a level are the
+     * padding of MerkleTree and resolve to the last real node of the level.
+     */
+    private byte[] node(int level, int index) {
+        if (index >= counts[level])
+            index = counts[level] - 1;
+
+        if (memo[level] == null)
+            memo[level] = new byte[counts[level]][];
+
+        byte[] hash = memo[level][index];
+        if (hash == null) {
+            if (level == 0)
+                hash = MerkleTree.digest(lines[index], 0, lines[index].length);
+            else
+                hash = MerkleTree.combineDigests(node(level - 1, 2 * index), node(level - 1, 2 * index + 1));
+            memo[level][index] = hash;
+        }
+        return hash;
+    }
+
+    private void addLine(byte[] line) {
+        if (lineCount == lines.length)
+            lines = Arrays.copyOf(lines, lineCount * 2);
+        lines[lineCount++] = line;
+    }
+
+    /**
+     * Works out the number of real nodes on every level. Like MerkleTree, a single line is still combined with its
+     * duplicate once, so the root is always at least one level above the leafs.
+     */
+    private void shape() {
+        if (lineCount == 0)
+            throw new IllegalArgumentException("file has no lines");
+
+        int height = 1;
+        while ((1L << height) < lineCount) {
+            height++;
+        }
+
+        counts = new int[height + 1];
+        counts[0] = lineCount;
+        for (int level = 1; level <= height; level++) {
+            counts[level] = (counts[level - 1] + 1) / 2;
+        }
+        memo = new byte[height + 1][][];
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= lineCount)
+            throw new IndexOutOfBoundsException("line " + index + " is outside of a file with " + lineCount + " lines");
+    }
+
+    //Main function to show that a spot check of a few lines only hashes the paths it touches
+    public static void main(String[] args) throws Exception {
+        String f = "CrimeLatLonXY.csv";
+        LazyMerkleTree lazy = new LazyMerkleTree(f);
+
+        MerkleProof proof = lazy.getProof(42);
+        System.out.println("Lines in file         : " + lazy.getLineCount());
+        System.out.println("Subtree over lines 0-3: " + MerkleTree.toHex(lazy.getSubtreeHash(2, 0)));
+        System.out.println("Root                  : " + lazy.getRoot());
+        System.out.println("Proof of line 42      : " + proof.verify(lazy.getSubtreeHash(0, 42), lazy.getRootDigest()));
+
+        lazy.update(42, "changed line");
+        System.out.println("Root after update     : " + lazy.getRoot());
+        System.out.println("Proof after update    : " + lazy.getProof(42).verify("changed line", lazy.getRoot()));
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ * @author Nikhil Kashyap
+ */
+package edu.cmu.andrew.nikhilka;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * This class is a Bloom filter over the leaf hashes of a Merkle tree. It answers "could this line be in the file?"
+ * in constant time without touching the tree or the file: a negative answer is always right, a positive answer is
+ * wrong with the chosen false positive rate and has to be confirmed by a scan or a rebuild.
+ *
+ * The leaf hashes are SHA-256 digests and already uniformly distributed, so the k bit positions are taken from the
+ * digest itself by double hashing (h1 + i * h2) instead of hashing the line again.
+ */
+public class LeafBloomFilter {
+
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+    private static final int MAGIC = 0x4D4B4246;
+
+    /**
+     * bits - the bit array, bit i is bit (i &amp; 63) of bits[i &gt;&gt;&gt; 6]
+     * bitCount - number of bits in use, the positions are taken modulo bitCount
+     * hashCount - number of bits set per leaf
+     */
+    private final long[] bits;
+    private final long bitCount;
+    private final int hashCount;
+
+    /**
+     * Creates an empty filter sized for the given number of leafs.
+     * @param expectedLeaves
+     * Number of leafs that will be added
+     * @param falsePositiveRate
+     * Wanted probability that a line not in the file is reported as possibly present, 0 &lt; rate &lt; 1
+     */
+    public LeafBloomFilter(long expectedLeaves, double falsePositiveRate) {
+        //written so that NaN, which fails every comparison, is rejected too
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1))
+            throw new IllegalArgumentException("false positive rate must be between 0 and 1");
+
+        long n = Math.max(1, expectedLeaves);
+        long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        bitCount = Math.max(64, m);
+        hashCount = Math.max(1, (int) Math.round((double) bitCount / n * Math.log(2)));
+        bits = new long[(int) ((bitCount + 63) >>> 6)];
+    }
+
+    private LeafBloomFilter(long[] bits, long bitCount, int hashCount) {
+        this.bits = bits;
+        this.bitCount = bitCount;
+        this.hashCount = hashCount;
+    }
+
+    /**
+     * Builds the filter of all leafs of an off-heap tree.
+     * Theta(n), linear in the number of lines
+     */
+    public static LeafBloomFilter of(OffHeapMerkleTree tree, double falsePositiveRate) {
+        LeafBloomFilter filter = new LeafBloomFilter(tree.getLineCount(), falsePositiveRate);
+        for (long i = 0; i < tree.getLineCount(); i++) {
+            filter.add(tree.getLeaf(i));
+        }
+        return filter;
+    }
+
+    /**
+     * Adds a leaf hash to the filter.
+     * Theta(k), linear in the number of hash positions
+     * @param digest
+     * 32 byte leaf hash
+     */
+    public void add(byte[] digest) {
+        long h1 = readLong(digest, 0);
+        long h2 = readLong(digest, 8) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Long.remainderUnsigned(h1 + i * h2, bitCount);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Checks whether a leaf hash may have been added.
+     * Theta(k), linear in the number of hash positions
+     * @param digest
+     * 32 byte leaf hash
+     * @return
+     * false if the hash was certainly never added, true if it may have been
+     */
+    public boolean mightContain(byte[] digest) {
+        long h1 = readLong(digest, 0);
+        long h2 = readLong(digest, 8) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Long.remainderUnsigned(h1 + i * h2, bitCount);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether a line may be in the file the filter was built from.
+     * @param line
+     * Plain text of the line, without its line terminator
+     */
+    public boolean mightContain(String line) {
+        byte[] text = line.getBytes(StandardCharsets.UTF_8);
+        return mightContain(MerkleTree.digest(text, 0, text.length));
+    }
+
+    /**
+     * Saves the filter, e.g. next to the file or tree it was built from.
+     * Theta(m), linear in the size of the filter
+     */
+    public void writeTo(Path path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(hashCount);
+            out.writeLong(bitCount);
+            for (long word : bits) {
+                out.writeLong(word);
+            }
+        }
+    }
+
+    /**
+     * Loads a filter saved by writeTo.
+     * Theta(m), linear in the size of the filter
+     * @exception IOException
+     * Indicates that the file could not be read or is not a saved filter
+     */
+    public static LeafBloomFilter readFrom(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException(path + " is not a saved leaf filter");
+            int hashCount = in.readInt();
+            long bitCount = in.readLong();
+            //positions are taken modulo bitCount, and the header must describe exactly the words that follow it
+            long words = (bitCount + 63) >>> 6;
+            if (bitCount <= 0 || hashCount <= 0 || hashCount > bitCount || words > Integer.MAX_VALUE - 8
+                    || Files.size(path) != 16 + 8 * words)
+                throw new IOException(path + " has a corrupt filter header: " + bitCount + " bits, " + hashCount
+                        + " hashes");
+            long[] bits = new long[(int) words];
+            for (int i = 0; i < bits.length; i++) {
+                bits[i] = in.readLong();
+            }
+            return new LeafBloomFilter(bits, bitCount, hashCount);
+        }
+    }
+
+    public long getBitCount() {
+        return bitCount;
+    }
+
+    public int getHashCount() {
+        return hashCount;
+    }
+
+    private static long readLong(byte[] digest, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (digest[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    //Main function asking the saved filters of all files which of them may hold a line
+    public static void main(String[] args) throws Exception {
+        String[] files = {"CrimeLatLonXY1990_Size2.csv", "CrimeLatLonXY1990_Size3.csv", "smallFile.txt", "CrimeLatLonXY.csv"};
+        String line = args.length > 0 ? args[0] : "length 1. We are not including newlines at the end of the line.";
+        Path directory = Paths.get(System.getProperty("java.io.tmpdir"));
+
+        for (String f : files) {
+            MerkleTree tree = new MerkleTree(f, true);
+            tree.getFilter().writeTo(directory.resolve(f + ".bloom"));
+        }
+
+        System.out.println("Looking for : " + line);
+        for (String f : files) {
+            LeafBloomFilter filter = LeafBloomFilter.readFrom(directory.resolve(f + ".bloom"));
+            System.out.println(f + " : " + (filter.mightContain(line) ? "may contain it, scan the file" : "does not contain it"));
+        }
+    }
+}
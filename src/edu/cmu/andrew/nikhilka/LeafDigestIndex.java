@@ -0,0 +1,189 @@
+/**
+ * @author Nikhil Kashyap
+ */
+package edu.cmu.andrew.nikhilka;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * This class finds lines of a file by content. It maps the 32 byte hash of every leaf of an OffHeapMerkleTree to the
+ * positions of the lines with that hash, so the position and the proof of a line are found in constant time instead
+ * of by a linear scan (ObjectNode.listSearch compares references and cannot find a line by content at all).
+ *
+ * The map is an open addressing table with linear probing over primitive arrays: a key is stored as four longs and
+ * no object is created per leaf. Lines with the same content are chained in file order through a single int array
+ * holding 1 + the next line, so an index holds at most MAX_LINES (2^27) lines; the constructor rejects larger trees.
+ */
+public class LeafDigestIndex {
+
+    /**
+     * The table has up to 2 * MAX_LINES slots of four longs each, 2^30 longs of keys; more lines would need a key
+     * array larger than Java allows.
+     */
+    private static final int MAX_LINES = 1 << 27;
+
+    /**
+     * tree - the tree whose leafs are indexed
+     * keys - keys[4 * slot .. 4 * slot + 3] hold the digest stored in a slot
+     * heads - heads[slot] is 1 + the first line with the digest of the slot, 0 for an empty slot
+     * next - next[line] is 1 + the next line with the same digest as line, 0 for the last one
+     * mask - number of slots minus one, the number of slots is a power of two
+     * distinct - number of different digests stored
+     */
+    private final OffHeapMerkleTree tree;
+    private final long[] keys;
+    private final int[] heads;
+    private final int[] next;
+    private final int mask;
+    private int distinct;
+
+    /**
+     * Indexes every line of a tree.
+     * Theta(n), linear in the number of lines
+     * @param tree
+     * Tree whose leafs are indexed, it must stay open while the index is used
+     */
+    public LeafDigestIndex(OffHeapMerkleTree tree) {
+        if (tree.getLineCount() > MAX_LINES)
+            throw new IllegalArgumentException("cannot index more than " + MAX_LINES + " lines");
+
+        this.tree = tree;
+        int lines = (int) tree.getLineCount();
+        //at most half of the slots are used, which keeps the probe sequences short
+        int slots = Integer.highestOneBit(Math.max(2, lines) * 2 - 1) << 1;
+        keys = new long[4 * slots];
+        heads = new int[slots];
+        next = new int[lines];
+        mask = slots - 1;
+
+        //lines are added from last to first, so every chain ends up in file order
+        byte[] digest = new byte[OffHeapHashStore.DIGEST_LENGTH];
+        for (int line = lines - 1; line >= 0; line--) {
+            tree.getNode(0, line, digest);
+            int slot = find(digest);
+            if (heads[slot] == 0) {
+                for (int i = 0; i < 4; i++) {
+                    keys[4 * slot + i] = readLong(digest, 8 * i);
+                }
+                distinct++;
+            }
+            next[line] = heads[slot];
+            heads[slot] = line + 1;
+        }
+    }
+
+    /**
+     * Returns the positions of all lines with the given hash.
+     * Theta(1 + k), for k lines with that hash
+     * @param digest
+     * 32 byte hash of the line
+     * @return
+     * Positions of the lines in file order, empty if there is none
+     */
+    public long[] indicesOf(byte[] digest) {
+        int slot = find(digest);
+        long[] found = new long[4];
+        int count = 0;
+
+        for (int entry = heads[slot]; entry != 0; entry = next[entry - 1]) {
+            if (count == found.length)
+                found = Arrays.copyOf(found, count * 2);
+            found[count++] = entry - 1;
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    /**
+     * Tells whether any line has the given hash.
+     * Theta(1), constant time complexity
+     * @param digest
+     * 32 byte hash of the line
+     */
+    public boolean contains(byte[] digest) {
+        return heads[find(digest)] != 0;
+    }
+
+    /**
+     * Returns the positions of all lines with the given content.
+     * @param line
+     * Plain text of the line, without its line terminator
+     */
+    public long[] indicesOf(String line) {
+        return indicesOf(digestOf(line));
+    }
+
+    /**
+     * Returns the position of the first line with the given content.
+     * Theta(1), constant time complexity
+     * @return
+     * Position of the line, or -1 if the file has no such line
+     */
+    public long indexOf(String line) {
+        return heads[find(digestOf(line))] - 1;
+    }
+
+    /**
+     * Returns the proof of the first line with the given content.
+     * Theta(log n), logarithmic in the number of lines
+     * @return
+     * Audit path of the line, or null if the file has no such line
+     */
+    public MerkleProof proofOf(String line) {
+        long index = indexOf(line);
+        return index < 0 ? null : tree.getProof(index);
+    }
+
+    /**
+     * Number of different lines in the file.
+     */
+    public int distinctCount() {
+        return distinct;
+    }
+
+    /**
+     * Finds the slot holding the digest, or the empty slot where it belongs.
+     */
+    private int find(byte[] digest) {
+        long k0 = readLong(digest, 0);
+        long k1 = readLong(digest, 8);
+        long k2 = readLong(digest, 16);
+        long k3 = readLong(digest, 24);
+
+        //the digest is uniformly distributed, so its own bits are a good slot number
+        int slot = (int) k0 & mask;
+        while (heads[slot] != 0) {
+            int key = 4 * slot;
+            if (keys[key] == k0 && keys[key + 1] == k1 && keys[key + 2] == k2 && keys[key + 3] == k3)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static byte[] digestOf(String line) {
+        byte[] text = line.getBytes(StandardCharsets.UTF_8);
+        return MerkleTree.digest(text, 0, text.length);
+    }
+
+    private static long readLong(byte[] digest, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (digest[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    //Main function looking up a line of a file by content and proving it
+    public static void main(String[] args) throws Exception {
+        try (OffHeapMerkleTree tree = new OffHeapMerkleTree("smallFile.txt")) {
+            LeafDigestIndex index = new LeafDigestIndex(tree);
+            String line = "length 1. We are not including newlines at the end of the line.";
+
+            System.out.println("Distinct lines   : " + index.distinctCount() + " of " + tree.getLineCount());
+            System.out.println("Line found at    : " + Arrays.toString(index.indicesOf(line)));
+            System.out.println("Empty line at    : " + Arrays.toString(index.indicesOf("")));
+            System.out.println("Missing line at  : " + index.indexOf("no such line"));
+            System.out.println("Proof of line    : " + index.proofOf(line).verify(line, tree.getRoot()));
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/**
+ * @author Nikhil Kashyap
+ */
+package edu.cmu.andrew.nikhilka;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.MalformedInputException;
+
+/**
+ * This class splits a stream of bytes into lines without creating a String for every line. It follows the line rules
+ * of Scanner.nextLine: "\r\n" and each of "\n", "\r", U+0085, U+2028 and U+2029 end a line. The bytes have to be
+ * valid UTF-8; at the first byte that is not, feed (or finish, for a character cut off at the end) throws a
+ * MalformedInputException whose message gives the offset of the problem. On a platform whose default charset is
+ * UTF-8, hashing the bytes of each line therefore gives the same leaf hashes as MerkleTree.readFile for valid input.
+ *
+ * Scanner itself never throws on invalid input. Reading a File or a channel, it stops at the bad byte as if the input
+ * had ended and keeps the MalformedInputException for ioException(), which MerkleTree.readFile checks and throws as
+ * an UncheckedIOException. Reading an InputStream, it replaces each bad sequence with U+FFFD and goes on, so a tree
+ * built that way hashes text that is not in the file. LineReader throws instead: the lines before the bad byte
+ * have already been passed to the consumer, but the caller gets the exception and never a root of part of the file.
+ *
+ * The bytes are pushed in with feed, which lets the same splitter sit behind plain streams, asynchronous reads or
+ * decompressors.
+ */
+public class LineReader {
+
+    /**
+     * Receives each line found by a LineReader. The buffer is only valid for the duration of the call.
+     */
+    public interface LineConsumer {
+        void accept(byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    /**
+     * consumer - receives every complete line
+     * pending - holds the start of a line that continues into the next call of feed
+     * skipLineFeed - true when the last byte seen was "\r", so a following "\n" belongs to the same terminator
+     * needed - continuation bytes still missing from the current multi-byte character, 0 between characters
+     * sequenceLength - bytes of the current multi-byte character seen so far
+     * codePoint - value of the current multi-byte character so far
+     * lower, upper - allowed range of its next continuation byte
+     * position - number of bytes fed before the current call of feed
+     */
+    private final LineConsumer consumer;
+    private byte[] pending;
+    private int pendingLength;
+    private boolean skipLineFeed;
+    private int needed;
+    private int sequenceLength;
+    private int codePoint;
+    private int lower;
+    private int upper;
+    private long position;
+
+    public LineReader(LineConsumer consumer) {
+        this.consumer = consumer;
+        pending = new byte[256];
+        pendingLength = 0;
+        skipLineFeed = false;
+    }
+
+    /**
+     * Splits the given bytes into lines. Lines which lie completely inside the buffer are passed on without copying.
+     * Theta(n), linear in the number of bytes fed
+     * @param buffer
+     * Bytes read from the input
+     * @param offset
+     * Index of the first byte to use
+     * @param length
+     * Number of bytes to use
+     * @postcondition
+     * Every line terminated inside the range has been passed to the consumer, the unterminated rest is kept.
+     * @exception MalformedInputException
+     * Indicates that the bytes are not valid UTF-8. The reader can not be used afterwards.
+     */
+    public void feed(byte[] buffer, int offset, int length) throws IOException {
+        int end = offset + length;
+        int start = offset;
+
+        for (int i = offset; i < end; i++) {
+            byte b = buffer[i];
+            if (b >= 0 && needed == 0) {
+                if (b == '\n' && skipLineFeed) {
+                    skipLineFeed = false;
+                    start = i + 1;
+                } else if (b == '\n' || b == '\r') {
+                    emit(buffer, start, i - start);
+                    skipLineFeed = b == '\r';
+                    start = i + 1;
+                } else {
+                    skipLineFeed = false;
+                }
+            } else if (decode(b & 0xFF, position + i - offset)) {
+                //the character that just ended is U+0085, U+2028 or U+2029, its bytes may have started in pending
+                endLine(buffer, start, i + 1 - sequenceLength);
+                start = i + 1;
+            }
+        }
+
+        if (start < end)
+            keep(buffer, start, end - start);
+        position += length;
+    }
+
+    /**
+     * Checks the next byte of a multi-byte UTF-8 character (Unicode table 3-7, which is what the Java decoder
+     * accepts).
+     * @return
+     * true if the byte completes a line separator
+     * @exception MalformedInputException
+     * Indicates that the byte can not appear at this point of valid UTF-8.
+     */
+    private boolean decode(int u, long at) throws IOException {
+        skipLineFeed = false;
+        if (needed == 0) {
+            if (u >= 0xC2 && u <= 0xDF) {
+                needed = 1;
+                codePoint = u & 0x1F;
+                lower = 0x80;
+                upper = 0xBF;
+            } else if (u >= 0xE0 && u <= 0xEF) {
+                needed = 2;
+                codePoint = u & 0x0F;
+                lower = u == 0xE0 ? 0xA0 : 0x80;
+                upper = u == 0xED ? 0x9F : 0xBF;
+            } else if (u >= 0xF0 && u <= 0xF4) {
+                needed = 3;
+                codePoint = u & 0x07;
+                lower = u == 0xF0 ? 0x90 : 0x80;
+                upper = u == 0xF4 ? 0x8F : 0xBF;
+            } else {
+                throw malformed(at);
+            }
+            sequenceLength = 1;
+            return false;
+        }
+
+        if (u < lower || u > upper)
+            throw malformed(at);
+        codePoint = (codePoint << 6) | (u & 0x3F);
+        lower = 0x80;
+        upper = 0xBF;
+        sequenceLength++;
+        return --needed == 0 && (codePoint == 0x85 || codePoint == 0x2028 || codePoint == 0x2029);
+    }
+
+    private static IOException malformed(long at) {
+        return new NotUtf8Exception(at);
+    }
+
+    /**
+     * MalformedInputException, the exception the decoder of Scanner keeps for ioException(), with the offset of the
+     * bad byte.
+     */
+    private static final class NotUtf8Exception extends MalformedInputException {
+        private static final long serialVersionUID = 1L;
+        private final long at;
+
+        NotUtf8Exception(long at) {
+            super(1);
+            this.at = at;
+        }
+
+        @Override
+        public String getMessage() {
+            return "byte " + at + " is not valid UTF-8";
+        }
+    }
+
+    /**
+     * Passes the last line to the consumer if the input did not end with a line terminator.
+     * Theta(1), constant time complexity
+     * @postcondition
+     * All lines of the input have been passed to the consumer.
+     * @exception MalformedInputException
+     * Indicates that the input ended inside a multi-byte character.
+     */
+    public void finish() throws IOException {
+        if (needed > 0)
+            throw malformed(position);
+        if (pendingLength > 0) {
+            consumer.accept(pending, 0, pendingLength);
+            pendingLength = 0;
+        }
+        skipLineFeed = false;
+    }
+
+    /**
+     * Reads the whole stream and passes each line to the consumer.
+     * Theta(n), linear in the size of the stream
+     * @param in
+     * Stream to read, it is not closed by this method
+     * @param consumer
+     * Receives every line of the stream
+     */
+    public static void readAll(InputStream in, LineConsumer consumer) throws IOException {
+        LineReader reader = new LineReader(consumer);
+        byte[] buffer = new byte[1 << 16];
+        int read;
+
+        while ((read = in.read(buffer)) != -1) {
+            reader.feed(buffer, 0, read);
+        }
+        reader.finish();
+    }
+
+    private void emit(byte[] buffer, int offset, int length) throws IOException {
+        if (pendingLength == 0) {
+            consumer.accept(buffer, offset, length);
+        } else {
+            keep(buffer, offset, length);
+            consumer.accept(pending, 0, pendingLength);
+            pendingLength = 0;
+        }
+    }
+
+    /**
+     * Passes on the line that ends before index end of the buffer. An end before start means the line ended inside
+     * pending, which then still holds the first bytes of the separator.
+     */
+    private void endLine(byte[] buffer, int start, int end) throws IOException {
+        if (end >= start) {
+            emit(buffer, start, end - start);
+        } else {
+            pendingLength -= start - end;
+            consumer.accept(pending, 0, pendingLength);
+            pendingLength = 0;
+        }
+    }
+
+    private void keep(byte[] buffer, int offset, int length) {
+        if (pendingLength + length > pending.length) {
+            byte[] grown = new byte[Math.max(pending.length * 2, pendingLength + length)];
+            System.arraycopy(pending, 0, grown, 0, pendingLength);
+            pending = grown;
+        }
+        System.arraycopy(buffer, offset, pending, pendingLength, length);
+        pendingLength += length;
+    }
+}
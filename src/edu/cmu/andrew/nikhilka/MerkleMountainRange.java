@@ -0,0 +1,414 @@
+/**
+ * @author Nikhil Kashyap
+ */
+package edu.cmu.andrew.nikhilka;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * This class keeps an append-only log as a Merkle Mountain Range: a list of perfect binary trees ("peaks") of
+ * decreasing height, one for every set bit of the number of leafs. Appending a line adds a leaf and merges equal
+ * peaks, so no node that already exists ever changes. The root is found by "bagging" the peaks from right to left.
+ *
+ * Nodes are combined with the same function as MerkleTree (SHA-256 of the hex of both children) and stored in an
+ * OffHeapHashStore in post-order, i.e. the children of a node always come before it. For 2^k lines with k &gt;= 1 the
+ * range is a single peak and its root is the root MerkleTree finds for the same lines. A single line is the
+ * exception: its peak, and so the root, is the hash of the line, while MerkleTree combines the line with a copy of
+ * itself. For other sizes the peaks are bagged instead of padded and the roots differ.
+ *
+ * A Proof is taken against the root of one size and does not follow the log as it grows. It keeps verifying against
+ * that older root, and a ConsistencyProof from getConsistencyProof shows that the older root is a prefix of the
+ * current one, so a client holding both never needs a new proof of its leaf.
+ */
+public class MerkleMountainRange implements Closeable {
+
+    /**
+     * nodes - every node of every peak in post-order, a leaf is followed by the parents it completes
+     * leafCount - number of lines appended so far
+     */
+    private final OffHeapHashStore nodes;
+    private long leafCount;
+
+    public MerkleMountainRange() {
+        nodes = new OffHeapHashStore();
+        leafCount = 0;
+    }
+
+    /**
+     * Creates an empty range whose nodes are spilled to a memory mapped file.
+     * @param spillDirectory
+     * Directory in which the node file is created
+     */
+    public MerkleMountainRange(File spillDirectory) throws IOException {
+        nodes = new OffHeapHashStore(spillDirectory);
+        leafCount = 0;
+    }
+
+    /**
+     * Appends a line to the log.
+     * Theta(1), amortized constant time complexity (at most log n merges, one on average)
+     * @param line
+     * Plain text of the line, without line terminator
+     * @return
+     * Index of the new leaf
+     */
+    public long append(String line) {
+        byte[] text = line.getBytes(StandardCharsets.UTF_8);
+        return appendDigest(MerkleTree.digest(text, 0, text.length));
+    }
+
+    /**
+     * Appends the hash of a leaf and merges every pair of peaks of equal height it completes.
+     * Theta(1), amortized constant time complexity
+     * @param leafDigest
+     * 32 byte hash of the leaf
+     * @return
+     * Index of the new leaf
+     * @postcondition
+     * The nodes of the range are those of a range with leafCount + 1 leafs, no existing node has changed.
+     */
+    public long appendDigest(byte[] leafDigest) {
+        long right = nodes.size();
+        nodes.add(leafDigest);
+
+        //every trailing 1 bit of the old count is a peak of the same height as the node just added
+        long merges = Long.numberOfTrailingZeros(~leafCount);
+        for (int height = 0; height < merges; height++) {
+            long left = right - ((2L << height) - 1);
+            nodes.add(MerkleTree.combineDigests(nodes.get(left), nodes.get(right)));
+            right = nodes.size() - 1;
+        }
+        return leafCount++;
+    }
+
+    /**
+     * Appends every line of a file to the log.
+     * Theta(n), linear in the size of the file
+     * @param file
+     * A valid file of plain text
+     */
+    public void appendFile(String file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            LineReader.readAll(in, (buffer, offset, length) -> appendDigest(MerkleTree.digest(buffer, offset, length)));
+        }
+    }
+
+    public long getLeafCount() {
+        return leafCount;
+    }
+
+    /**
+     * Hex bagged root of the whole log.
+     * Theta(log n), logarithmic time complexity
+     */
+    public String getRoot() {
+        return MerkleTree.toHex(getRootDigest(leafCount));
+    }
+
+    public byte[] getRootDigest() {
+        return getRootDigest(leafCount);
+    }
+
+    /**
+     * Bagged root the log had when it held only its first size leafs. Because nodes never change, proofs taken at
+     * an earlier size can always be checked against this root.
+     * Theta(log n), logarithmic time complexity
+     * @param size
+     * Number of leafs, 1 &lt;= size &lt;= getLeafCount()
+     * @return
+     * 32 byte root digest
+     */
+    public byte[] getRootDigest(long size) {
+        return bag(peaks(size));
+    }
+
+    /**
+     * Builds the proof of a leaf against the current root: the audit path from the leaf to its peak together with
+     * the hashes of all peaks. The audit path part never changes as the log grows.
+     * Theta(log n), logarithmic time complexity
+     * @param index
+     * Position of the leaf, 0 &lt;= index &lt; getLeafCount()
+     */
+    public Proof getProof(long index) {
+        if (index < 0 || index >= leafCount)
+            throw new IndexOutOfBoundsException("leaf " + index + " is outside of a log with " + leafCount + " leafs");
+
+        long peakPosition = -1;
+        long firstLeaf = 0;
+        int peakIndex = 0;
+        int height = 0;
+        for (int bit = 63; bit >= 0; bit--) {
+            if ((leafCount & (1L << bit)) == 0)
+                continue;
+            peakPosition += (2L << bit) - 1;
+            if (index < firstLeaf + (1L << bit)) {
+                height = bit;
+                break;
+            }
+            firstLeaf += 1L << bit;
+            peakIndex++;
+        }
+
+        //walk down from the peak to the leaf, collecting the sibling of every node on the way
+        byte[][] siblings = new byte[height][];
+        long position = peakPosition;
+        for (int h = height; h > 0; h--) {
+            long leftChild = position - (1L << h);
+            long rightChild = position - 1;
+            if (((index - firstLeaf) & (1L << (h - 1))) == 0) {
+                siblings[h - 1] = nodes.get(rightChild);
+                position = leftChild;
+            } else {
+                siblings[h - 1] = nodes.get(leftChild);
+                position = rightChild;
+            }
+        }
+
+        return new Proof(new MerkleProof(index - firstLeaf, siblings), peakIndex, peaks(leafCount), leafCount);
+    }
+
+    /**
+     * Builds the proof that the range with its first oldSize leafs is a prefix of the range now: the peaks of both
+     * sizes and, for every old peak, the audit path from it up to the current peak that holds it.
+     * O(log^2 n), at most log n old peaks each climb at most log n levels
+     * @param oldSize
+     * Number of leafs of the older range, 1 &lt;= oldSize &lt;= getLeafCount()
+     */
+    public ConsistencyProof getConsistencyProof(long oldSize) {
+        byte[][] oldPeaks = peaks(oldSize);
+        byte[][][] paths = new byte[oldPeaks.length][][];
+        long first = 0;
+        int k = 0;
+        for (int bit = 63; bit >= 0; bit--) {
+            if ((oldSize & (1L << bit)) == 0)
+                continue;
+
+            //climb from the old peak, which is the node of height bit above leaf first, to the current peak
+            int top = peakHeight(leafCount, first);
+            byte[][] siblings = new byte[top - bit][];
+            long start = first;
+            for (int h = bit; h < top; h++) {
+                long sibling = (start & (1L << h)) == 0 ? start + (1L << h) : start - (1L << h);
+                siblings[h - bit] = nodes.get(position(sibling, h));
+                start &= -(2L << h);
+            }
+            paths[k++] = siblings;
+            first += 1L << bit;
+        }
+        return new ConsistencyProof(oldSize, leafCount, oldPeaks, paths, peaks(leafCount));
+    }
+
+    /**
+     * Releases the nodes of the range.
+     */
+    @Override
+    public void close() throws IOException {
+        nodes.close();
+    }
+
+    /**
+     * Returns the peak hashes of a range of the given size, highest peak first.
+     */
+    private byte[][] peaks(long size) {
+        if (size <= 0 || size > leafCount)
+            throw new IllegalArgumentException("size " + size + " is not between 1 and " + leafCount);
+
+        byte[][] peaks = new byte[Long.bitCount(size)][];
+        long position = -1;
+        int i = 0;
+        for (int bit = 63; bit >= 0; bit--) {
+            if ((size & (1L << bit)) != 0) {
+                position += (2L << bit) - 1;
+                peaks[i++] = nodes.get(position);
+            }
+        }
+        return peaks;
+    }
+
+    /**
+     * Height of the peak holding a leaf in a range of the given size. Peaks follow the set bits of the size, so the
+     * leaf lies in the peak of the highest bit in which it differs from the size.
+     * @precondition
+     * 0 &lt;= leaf &lt; size
+     */
+    static int peakHeight(long size, long leaf) {
+        return 63 - Long.numberOfLeadingZeros(size ^ leaf);
+    }
+
+    /**
+     * Position in post-order of the node of the given height above the leafs [start, start + 2^height): the node is
+     * added right after its last leaf, which follows the 2 (start + 2^height - 1) - bitCount(...) nodes of the
+     * leafs before it, and the height - 1 parents below it.
+     */
+    static long position(long start, int height) {
+        long before = start + (1L << height) - 1;
+        return 2 * before - Long.bitCount(before) + height;
+    }
+
+    /**
+     * Combines the peaks from right to left into a single root, a single peak is its own root (even a single leaf,
+     * which MerkleTree would combine with its duplicate).
+     */
+    static byte[] bag(byte[][] peaks) {
+        byte[] root = peaks[peaks.length - 1];
+        for (int i = peaks.length - 2; i >= 0; i--) {
+            root = MerkleTree.combineDigests(peaks[i], root);
+        }
+        return root;
+    }
+
+    /**
+     * This class holds the proof that a leaf belongs to a Merkle Mountain Range of a given size.
+     */
+    public static class Proof {
+
+        /**
+         * path - audit path from the leaf to its peak, its index is the position of the leaf inside the peak
+         * peakIndex - which of peaks the path leads to
+         * peaks - hashes of all peaks of the range, highest first
+         * size - number of leafs of the range the proof was taken from
+         */
+        private final MerkleProof path;
+        private final int peakIndex;
+        private final byte[][] peaks;
+        private final long size;
+
+        public Proof(MerkleProof path, int peakIndex, byte[][] peaks, long size) {
+            this.path = path;
+            this.peakIndex = peakIndex;
+            this.peaks = peaks;
+            this.size = size;
+        }
+
+        public MerkleProof getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Checks that the leaf leads to its peak and that the peaks bag to the given root.
+         * Theta(log n), logarithmic time complexity
+         * @param leafDigest
+         * 32 byte hash of the leaf
+         * @param root
+         * Bagged root of the range at getSize() leafs, see getRootDigest(long)
+         * @return
+         * true if the leaf is in the range with that root, else false
+         */
+        public boolean verify(byte[] leafDigest, byte[] root) {
+            return MessageDigest.isEqual(path.computeRoot(leafDigest), peaks[peakIndex])
+                    && MessageDigest.isEqual(bag(peaks), root);
+        }
+
+        public boolean verify(String line, String root) {
+            byte[] text = line.getBytes(StandardCharsets.UTF_8);
+            return verify(MerkleTree.digest(text, 0, text.length), MerkleTree.fromHex(root));
+        }
+    }
+
+    /**
+     * This class holds the proof that a Merkle Mountain Range of one size is a prefix of the range of a larger size,
+     * i.e. that the log has only been appended to in between.
+     */
+    public static class ConsistencyProof {
+
+        /**
+         * oldSize - number of leafs of the older range
+         * newSize - number of leafs of the newer range
+         * oldPeaks - hashes of the peaks of the older range, highest first
+         * paths - paths[k] holds the siblings from oldPeaks[k] up to the newer peak holding it, lowest first
+         * newPeaks - hashes of the peaks of the newer range, highest first
+         */
+        private final long oldSize;
+        private final long newSize;
+        private final byte[][] oldPeaks;
+        private final byte[][][] paths;
+        private final byte[][] newPeaks;
+
+        public ConsistencyProof(long oldSize, long newSize, byte[][] oldPeaks, byte[][][] paths, byte[][] newPeaks) {
+            this.oldSize = oldSize;
+            this.newSize = newSize;
+            this.oldPeaks = oldPeaks;
+            this.paths = paths;
+            this.newPeaks = newPeaks;
+        }
+
+        public long getOldSize() {
+            return oldSize;
+        }
+
+        public long getNewSize() {
+            return newSize;
+        }
+
+        /**
+         * Checks that the old peaks bag to the old root, that every old peak climbs to the new peak holding it and
+         * that the new peaks bag to the new root. Where each old peak sits is derived from the two sizes, not taken
+         * from the proof.
+         * O(log^2 n), at most log n old peaks each climb at most log n levels
+         * @param oldRoot
+         * Bagged root of the range at getOldSize() leafs
+         * @param newRoot
+         * Bagged root of the range at getNewSize() leafs
+         * @return
+         * true if the older range is a prefix of the newer one, else false
+         */
+        public boolean verify(byte[] oldRoot, byte[] newRoot) {
+            if (oldSize < 1 || oldSize > newSize || oldPeaks.length != Long.bitCount(oldSize)
+                    || newPeaks.length != Long.bitCount(newSize) || paths.length != oldPeaks.length)
+                return false;
+
+            long first = 0;
+            int k = 0;
+            for (int bit = 63; bit >= 0; bit--) {
+                if ((oldSize & (1L << bit)) == 0)
+                    continue;
+
+                int top = peakHeight(newSize, first);
+                if (paths[k].length != top - bit)
+                    return false;
+                MerkleProof path = new MerkleProof((first & ((1L << top) - 1)) >> bit, paths[k]);
+                byte[] peak = newPeaks[Long.bitCount(newSize >>> top) - 1];
+                if (!MessageDigest.isEqual(path.computeRoot(oldPeaks[k]), peak))
+                    return false;
+                first += 1L << bit;
+                k++;
+            }
+            return MessageDigest.isEqual(bag(oldPeaks), oldRoot) && MessageDigest.isEqual(bag(newPeaks), newRoot);
+        }
+
+        public boolean verify(String oldRoot, String newRoot) {
+            return verify(MerkleTree.fromHex(oldRoot), MerkleTree.fromHex(newRoot));
+        }
+    }
+
+    //Main function to show that a proof taken early in the log still verifies after the log has grown
+    public static void main(String[] args) throws Exception {
+        MerkleMountainRange log = new MerkleMountainRange();
+        for (int i = 0; i < 100; i++) {
+            log.append("audit record " + i);
+        }
+
+        Proof proof = log.getProof(5);
+        String rootAt100 = log.getRoot();
+        System.out.println("Root after 100 records     : " + rootAt100);
+
+        log.appendFile("CrimeLatLonXY.csv");
+        System.out.println("Root after appending a file: " + log.getRoot());
+        System.out.println("Records in the log         : " + log.getLeafCount());
+        System.out.println("Old proof against old root : " + proof.verify("audit record 5",
+                MerkleTree.toHex(log.getRootDigest(proof.getSize()))));
+        System.out.println("New proof against new root : " + log.getProof(5).verify("audit record 5", log.getRoot()));
+        System.out.println("Old root is a prefix of new: " + log.getConsistencyProof(proof.getSize())
+                .verify(rootAt100, log.getRoot()));
+        log.close();
+    }
+}
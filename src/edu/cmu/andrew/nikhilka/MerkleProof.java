@@ -0,0 +1,86 @@
+/**
+ * @author Nikhil Kashyap
+ */
+package edu.cmu.andrew.nikhilka;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * This class holds the audit path of one leaf of a Merkle tree: the sibling digest at every level from the leaf up to
+ * the root. Whether a sibling is on the left or on the right follows from the bits of the leaf index, because every
+ * level of the tree is padded to an even number of nodes by duplicating its last node.
+ */
+public class MerkleProof {
+
+    /**
+     * index - position of the proven leaf among the leafs of the tree
+     * siblings - sibling digests ordered from the leaf level up to the level below the root
+     */
+    private final long index;
+    private final byte[][] siblings;
+
+    public MerkleProof(long index, byte[][] siblings) {
+        this.index = index;
+        this.siblings = siblings;
+    }
+
+    public long getIndex() {
+        return index;
+    }
+
+    public byte[][] getSiblings() {
+        return siblings;
+    }
+
+    /**
+     * Recomputes the root digest from the digest of the proven leaf.
+     * Theta(log n), logarithmic in the number of leafs of the tree
+     * @param leafDigest
+     * 32 byte digest of the leaf at index
+     * @return
+     * 32 byte root digest implied by this proof
+     * @exception IllegalArgumentException
+     * If the index is not between 0 and 2^(number of siblings) - 1, since its higher bits would be ignored
+     */
+    public byte[] computeRoot(byte[] leafDigest) {
+        if (index < 0 || (siblings.length < 63 && index >= 1L << siblings.length))
+            throw new IllegalArgumentException("leaf " + index + " is outside of a tree of height " + siblings.length);
+
+        byte[] node = leafDigest;
+        long position = index;
+
+        for (byte[] sibling : siblings) {
+            if ((position & 1) == 0)
+                node = MerkleTree.combineDigests(node, sibling);
+            else
+                node = MerkleTree.combineDigests(sibling, node);
+            position >>>= 1;
+        }
+        return node;
+    }
+
+    /**
+     * Checks that the given line is the leaf at index of the tree with the given root.
+     * Theta(log n), logarithmic in the number of leafs of the tree
+     * @param line
+     * Plain text of the line, without its line terminator
+     * @param root
+     * Hex root of the tree as printed by MerkleTree
+     * @return
+     * true if the proof leads from the line to the root, else false
+     */
+    public boolean verify(String line, String root) {
+        byte[] text = line.getBytes(StandardCharsets.UTF_8);
+        return verify(MerkleTree.digest(text, 0, text.length), MerkleTree.fromHex(root));
+    }
+
+    /**
+     * Checks that the given leaf digest is the leaf at index of the tree with the given root digest.
+     * Theta(log n), logarithmic in the number of leafs of the tree
+     * @return
+     * true if the proof leads from the leaf to the root, else false
+     */
+    public boolean verify(byte[] leafDigest, byte[] root) {
+        return MessageDigest.isEqual(computeRoot(leafDigest), root);
+    }
+}
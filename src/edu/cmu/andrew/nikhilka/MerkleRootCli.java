@@ -0,0 +1,151 @@
+/**
+ * @author Nikhil Kashyap
+ */
+package edu.cmu.andrew.nikhilka;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * This class is a command line tool printing the Merkle root of any number of files in one JVM, for scripts that
+ * used to start MerkleTree.main once per file. It is meant to be started through merkle-root.sh, which runs it with
+ * an AppCDS archive so the JVM maps its classes instead of loading them.
+ *
+ * Usage: MerkleRootCli [--cache file] [--expect root] file...
+ *
+ *   --cache  remember the roots in the given file and reuse them for files whose size and modification time have
+ *            not changed, so unchanged files are not read at all
+ *   --expect print only the files with the given root and exit with 1 if there is none
+ *
+ * The leaf hashes are kept on the heap and reduced in place with a single warmed SHA-256 digest. Once a file has
+ * more than HEAP_LINES lines, which is only known while it is read and does not depend on whether it is compressed,
+ * the hashes move to an OffHeapMerkleTree whose levels are memory mapped in java.io.tmpdir, so neither -Xmx nor
+ * -XX:MaxDirectMemorySize limits the size of a file. Gzip and BGZF files are inflated on the fly. The roots are the
+ * same MerkleTree finds.
+ *
+ * A file that cannot be read is reported as "file: error" on stderr and the remaining files are still processed.
+ * The exit status is 2 if any file failed, else 1 if --expect found no file, else 0.
+ */
+public class MerkleRootCli {
+
+    private static final int HEAP_LINES = 1 << 16;
+    private static final File SPILL_DIRECTORY = new File(System.getProperty("java.io.tmpdir"));
+
+    /**
+     * Calculates the root of a file with the fewest classes and allocations possible.
+     * Theta(n), linear in the size of the file
+     * @param file
+     * Is a valid file containing at least one line of plain text.
+     * @return
+     * Hex Merkle root of the file
+     */
+    public static String root(Path file) throws IOException {
+        byte[][][] leaves = {new byte[64][]};
+        int[] count = {0};
+        OffHeapHashStore[] spilled = {null};
+        try {
+            CompressedInput.readLines(file, (buffer, offset, length) -> {
+                byte[] digest = MerkleTree.digest(buffer, offset, length);
+                if (spilled[0] == null && count[0] == HEAP_LINES) {
+                    //too many lines for the heap, move the hashes read so far to a mapped store
+                    spilled[0] = new OffHeapHashStore(SPILL_DIRECTORY);
+                    for (int i = 0; i < count[0]; i++) {
+                        spilled[0].add(leaves[0][i]);
+                    }
+                    leaves[0] = null;
+                }
+                if (spilled[0] != null) {
+                    spilled[0].add(digest);
+                    return;
+                }
+                if (count[0] == leaves[0].length)
+                    leaves[0] = Arrays.copyOf(leaves[0], count[0] * 2);
+                leaves[0][count[0]++] = digest;
+            });
+        } catch (IOException | RuntimeException e) {
+            if (spilled[0] != null)
+                spilled[0].close();
+            throw e;
+        }
+
+        if (spilled[0] != null) {
+            try (OffHeapMerkleTree tree = new OffHeapMerkleTree(spilled[0], SPILL_DIRECTORY)) {
+                return tree.getRoot();
+            }
+        }
+        if (count[0] == 0)
+            throw new IllegalArgumentException(file + " has no lines");
+
+        //reduce the level in place, duplicating the last node of an odd level like MerkleTree does
+        byte[][] level = leaves[0];
+        int size = count[0];
+        do {
+            if (size % 2 != 0) {
+                if (size == level.length)
+                    level = Arrays.copyOf(level, size + 1);
+                level[size] = level[size - 1];
+                size++;
+            }
+            for (int i = 0; i < size / 2; i++) {
+                level[i] = MerkleTree.combineDigests(level[2 * i], level[2 * i + 1]);
+            }
+            size /= 2;
+        } while (size > 1);
+
+        return MerkleTree.toHex(level[0]);
+    }
+
+    public static void main(String[] args) throws Exception {
+        RootCache cache = null;
+        String expect = null;
+        int first = 0;
+
+        while (first < args.length && args[first].startsWith("--")) {
+            if (args[first].equals("--cache") && first + 1 < args.length) {
+                cache = new RootCache(Paths.get(args[first + 1]));
+            } else if (args[first].equals("--expect") && first + 1 < args.length) {
+                expect = args[first + 1];
+            } else {
+                first = args.length;
+                break;
+            }
+            first += 2;
+        }
+        if (first >= args.length) {
+            System.err.println("usage: MerkleRootCli [--cache file] [--expect root] file...");
+            System.exit(2);
+        }
+
+        boolean found = false;
+        boolean failed = false;
+        for (int i = first; i < args.length; i++) {
+            Path file = Paths.get(args[i]);
+            String root;
+            try {
+                root = cache == null ? null : cache.get(file);
+                if (root == null)
+                    root = cache == null ? root(file) : cache.computeAndPut(file, MerkleRootCli::root);
+            } catch (IOException | RuntimeException e) {
+                System.err.println(args[i] + ": " + e);
+                failed = true;
+                continue;
+            }
+
+            if (expect == null) {
+                System.out.println(root + "  " + args[i]);
+            } else if (root.equalsIgnoreCase(expect)) {
+                System.out.println(args[i]);
+                found = true;
+            }
+        }
+
+        if (cache != null)
+            cache.save();
+        if (failed)
+            System.exit(2);
+        if (expect != null && !found)
+            System.exit(1);
+    }
+}
@@ -3,9 +3,11 @@
  */
 
 package edu.cmu.andrew.nikhilka;
-import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Scanner;
@@ -19,47 +21,70 @@ public class MerkleTree {
      * leafs - initially all the plain text from a file is read and stored in a node as part of SinglyLinkedList ObjectNode
      * hashes - contains the Hash value of each sentence at each node corresponding to leafs node
      * merkleRoot - is the root node of the merkle tree
+     * filter - optional Bloom filter of the leaf hashes, null unless asked for
      */
     SinglyLinkedList leafs;
     SinglyLinkedList hashes;
     ObjectNode merkleRoot;
+    LeafBloomFilter filter;
 
     public MerkleTree(String file) throws NoSuchAlgorithmException {
+        this(file, false);
+    }
+
+    /**
+     * Builds the tree of a file, optionally together with a Bloom filter of its leaf hashes.
+     * @param file
+     * Is a valid file containing at least one line of plain text.
+     * @param withFilter
+     * true to also build a LeafBloomFilter while the leaf hashes are populated
+     */
+    public MerkleTree(String file, boolean withFilter) throws NoSuchAlgorithmException {
         leafs = new SinglyLinkedList();
         hashes = new SinglyLinkedList();
         leafs.reset();
         hashes.reset();
         readFile(file);
+        if (withFilter)
+            filter = new LeafBloomFilter(leafs.countNodes(), LeafBloomFilter.DEFAULT_FALSE_POSITIVE_RATE);
         populateHashes();
         calculateRootNode();
     }
 
     /**
      * Reads each line from a file and populates the leafs linked list with each node containing a line from file.
+     * Gzip and BGZF files are inflated while they are read.
      * Theta(n), linear time complexity (depending on the size of file)
      * @param file
-     * Is a valid file containing at least one line of plain text.
+     * Is a valid file containing at least one line of plain text, either plain or compressed.
      *
      * @precondition
      * leafs is an object of SinglyLinkedList which is also initialized appropriately
      * @postcondition
      * Leafs is populated with each node having a line from the file as its ObjectNode data.
+     * @exception UncheckedIOException
+     * Indicates that the file stopped before its end, e.g. a truncated gzip file or bytes the default charset
+     * cannot decode
      */
     public void readFile(String file){
         try {
-            File myObj = new File(file);
-            Scanner myReader = new Scanner(myObj);
+            //a channel, unlike a stream, makes the Scanner stop at undecodable bytes just like Scanner(File) does
+            Scanner myReader = new Scanner(Channels.newChannel(CompressedInput.open(Paths.get(file))));
             while (myReader.hasNextLine()) {
                 String data = myReader.nextLine();
                 leafs.addAtEndNode(data);
             }
             myReader.close();
 
+            //the Scanner reports a failed read as the end of the file, the lines read so far are not the whole file
+            if (myReader.ioException() != null)
+                throw new UncheckedIOException(file + " could not be read completely", myReader.ioException());
+
             //Forcing leafs to have even number of nodes
             if(!(leafs.countNodes() % 2 == 0)){
                 leafs.addAtEndNode(leafs.getLast());
             }
-        } catch (FileNotFoundException e) {
+        } catch (IOException e) {
             System.out.println("An error occurred.");
             e.printStackTrace();
         }
@@ -72,7 +97,8 @@ public class MerkleTree {
      * leafs linked list is populated and null terminated. hashes is an object of singlyLinkedList, also initialized
      * appropriately
      * @postcondition
-     * Each node of hashes linked list will contain the hash value of corresponding leafs node.
+     * Each node of hashes linked list will contain the hash value of corresponding leafs node. If there is a filter,
+     * every hash has been added to it.
      * @throws NoSuchAlgorithmException
      */
     public void populateHashes() throws NoSuchAlgorithmException {
@@ -81,6 +107,8 @@ public class MerkleTree {
         while (leafs.hasNext()){
             hash = h((String) leafs.next());
             hashes.addAtEndNode(hash);
+            if (filter != null)
+                filter.add(fromHex(hash));
         }
         hashes.reset();
     }
@@ -138,6 +166,13 @@ public class MerkleTree {
     return temp;
     }
 
+    /**
+     * Bloom filter of the leaf hashes, null unless the tree was built with one.
+     */
+    public LeafBloomFilter getFilter() {
+        return filter;
+    }
+
     /**
      * Generates Hash for the given String.
      * Theta(1), constant time complexity
@@ -148,16 +183,106 @@ public class MerkleTree {
      * @throws NoSuchAlgorithmException
      */
     public static String h(String text) throws NoSuchAlgorithmException {
-        MessageDigest digest = MessageDigest.getInstance("SHA-256");
-        byte[] hash = digest.digest(text.getBytes(StandardCharsets.UTF_8));
-        StringBuffer sb = new StringBuffer();
+        //reuses the digest of this thread instead of looking up the provider for every line
+        byte[] hash = DIGEST.get().digest(text.getBytes(StandardCharsets.UTF_8));
+        return toHex(hash);
+    }
 
-        for (int i = 0; i <= 31; i++) {
-            byte b = hash[i];
-            sb.append(String.format("%02X", b));
+    /**
+     * SHA-256 digest of each thread, reused across calls so the byte level helpers below do not look up the provider
+     * for every hash. SHA-256 is required on every Java platform, so a missing provider is reported as an
+     * IllegalStateException instead of a checked exception.
+     */
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
         }
+    });
+
+    private static final byte[] HEX_DIGITS = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Generates the raw SHA-256 digest of a range of bytes. For UTF-8 text this is the binary form of h(text).
+     * Theta(n), linear in the length of the range
+     * @param data
+     * Bytes to hash
+     * @param offset
+     * Index of the first byte to hash
+     * @param length
+     * Number of bytes to hash
+     * @return
+     * 32 byte SHA-256 digest of the range
+     */
+    public static byte[] digest(byte[] data, int offset, int length) {
+        MessageDigest md = DIGEST.get();
+        md.update(data, offset, length);
+        return md.digest();
+    }
 
-        return sb.toString();
+    /**
+     * Combines two child digests into their parent digest exactly like combine does for hex Strings, i.e. the parent
+     * is the SHA-256 of the upper case hex of the left child followed by the upper case hex of the right child.
+     * Theta(1), constant time complexity
+     * @param left
+     * 32 byte digest of the left child
+     * @param right
+     * 32 byte digest of the right child
+     * @return
+     * 32 byte digest of the parent node
+     */
+    public static byte[] combineDigests(byte[] left, byte[] right) {
+        byte[] text = new byte[128];
+        writeHex(left, text, 0);
+        writeHex(right, text, 64);
+        return DIGEST.get().digest(text);
+    }
+
+    /**
+     * Converts a 32 byte digest to the upper case hex String used by h.
+     * Theta(1), constant time complexity
+     * @param digest
+     * 32 byte SHA-256 digest
+     * @return
+     * 64 character upper case hex String
+     */
+    public static String toHex(byte[] digest) {
+        byte[] text = new byte[64];
+        writeHex(digest, text, 0);
+        return new String(text, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Converts a hex String produced by h back into its 32 byte digest.
+     * Theta(1), constant time complexity
+     * @param hex
+     * 64 character hex String (either case)
+     * @return
+     * 32 byte digest
+     * @exception IllegalArgumentException
+     * Indicates that hex is not a 64 character hex String.
+     */
+    public static byte[] fromHex(String hex) {
+        if (hex.length() != 64)
+            throw new IllegalArgumentException("hash is not 64 hex characters");
+
+        byte[] digest = new byte[32];
+        for (int i = 0; i < 32; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0)
+                throw new IllegalArgumentException("hash is not 64 hex characters");
+            digest[i] = (byte) ((high << 4) | low);
+        }
+        return digest;
+    }
+
+    private static void writeHex(byte[] digest, byte[] text, int offset) {
+        for (int i = 0; i < 32; i++) {
+            text[offset + 2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0xF];
+            text[offset + 2 * i + 1] = HEX_DIGITS[digest[i] & 0xF];
+        }
     }
 
     //Main function to find the merkle root of different files with the help of instance methods
@@ -0,0 +1,761 @@
+/**
+ * @author Nikhil Kashyap
+ */
+package edu.cmu.andrew.nikhilka;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.MalformedInputException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Scanner;
+import java.util.SplittableRandom;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class checks every way of building a Merkle root against a frozen copy of the original MerkleTree algorithm,
+ * and stresses the list classes from many threads at once. It is run by hand or by a script, not by a test framework:
+ *
+ * Usage: MerkleTreeHarness [--max-lines n] [--heap-limit n] [--threads n] [--rounds n] [--dir directory]
+ *
+ *   --max-lines  largest synthetic file, up to 100000000 lines (default 131073)
+ *   --heap-limit largest file given to the reference and the other builders that keep every line on the heap
+ *                (default 262144); larger files are only checked for agreement between the other builders
+ *   --threads    threads of the concurrent stress tests (default: number of processors)
+ *   --rounds     rounds per thread of the list stress test (default 2000)
+ *   --dir        where the synthetic files are written (default: a new temporary directory)
+ *
+ * The synthetic files have 0 to max-lines lines. Besides the powers of two and their neighbours, the counts include
+ * 2^k + 1, which is odd on every level of the tree, so every level needs its last node duplicated. Lines are random
+ * CSV-like records and non ASCII text, with empty and repeated lines and a random mix of every terminator Scanner
+ * knows: "\n", "\r", "\r\n", U+0085, U+2028 and U+2029. Every file is a function of its line count alone, so a
+ * failure can be reproduced by rerunning with the same counts. Separate small files hold invalid UTF-8, which every
+ * builder has to reject, and files repeating their last lines, which diff has to tell from the padding.
+ *
+ * MerkleTree and the reference decode with the default charset, so the harness refuses to run unless it is UTF-8.
+ *
+ * Each check prints PASS or FAIL with its time and throughput; the process exits with 1 if any check failed.
+ */
+public class MerkleTreeHarness {
+
+    /**
+     * directory - where the synthetic files are written
+     * heapLimit - largest line count given to the builders that keep all lines on the heap
+     * spillDirectory - directory for the level files of memory mapped OffHeapMerkleTrees
+     * asyncReader - reader shared by all asynchronous builds
+     * passed, failed - number of checks that passed and failed
+     */
+    private final Path directory;
+    private final long heapLimit;
+    private final File spillDirectory;
+    private final AsyncBlockReader asyncReader;
+    private int passed;
+    private int failed;
+
+    public MerkleTreeHarness(Path directory, long heapLimit) throws IOException {
+        this.directory = directory;
+        this.heapLimit = heapLimit;
+        spillDirectory = Files.createDirectories(directory.resolve("spill")).toFile();
+        asyncReader = new AsyncBlockReader();
+    }
+
+    /**
+     * The MerkleTree build as it was before any faster path was added: Scanner lines, hex Strings hashed with a new
+     * MessageDigest each time, and the levels halved until one node is left. Do not optimise or share code with the
+     * classes under test, its only purpose is to stay the same.
+     */
+    static final class ReferenceMerkleTree {
+
+        static String root(String file) throws FileNotFoundException, NoSuchAlgorithmException {
+            ArrayList<String> leafs = new ArrayList<>();
+            Scanner myReader = new Scanner(new File(file));
+            while (myReader.hasNextLine()) {
+                leafs.add(myReader.nextLine());
+            }
+            myReader.close();
+
+            //Forcing leafs to have even number of nodes
+            if (leafs.size() % 2 != 0)
+                leafs.add(leafs.get(leafs.size() - 1));
+
+            ArrayList<String> hashes = new ArrayList<>();
+            for (String leaf : leafs) {
+                hashes.add(h(leaf));
+            }
+
+            while (true) {
+                ArrayList<String> temp = new ArrayList<>();
+                for (int i = 0; i < hashes.size(); i += 2) {
+                    temp.add(h(hashes.get(i) + hashes.get(i + 1)));
+                }
+                hashes = temp;
+
+                if (hashes.size() == 1)
+                    break;
+
+                if (hashes.size() % 2 != 0)
+                    hashes.add(hashes.get(hashes.size() - 1));
+            }
+            return hashes.get(0);
+        }
+
+        static String h(String text) throws NoSuchAlgorithmException {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuffer sb = new StringBuffer();
+
+            for (int i = 0; i <= 31; i++) {
+                byte b = hash[i];
+                sb.append(String.format("%02X", b));
+            }
+
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Every line terminator Scanner.nextLine knows: "\r", "\r\n", "\n", NEL, LINE SEPARATOR and PARAGRAPH SEPARATOR.
+     */
+    private static final byte[][] TERMINATORS = {
+            {'\r'}, {'\r', '\n'}, {'\n'}, {(byte) 0xC2, (byte) 0x85}, {(byte) 0xE2, (byte) 0x80, (byte) 0xA8},
+            {(byte) 0xE2, (byte) 0x80, (byte) 0xA9}
+    };
+
+    /**
+     * Non ASCII text with two, three and four byte UTF-8 sequences, the last one a surrogate pair in Java.
+     */
+    private static final String[] TEXT = {
+            "caf\u00e9 cr\u00e8me br\u00fbl\u00e9e", "\u4e2d\u6587\u6570\u636e", "\u03a3\u03b5\u03bb\u03af\u03b4\u03b1",
+            "\ud83d\ude00 \ud83c\udf0d", "\u00a0\u2007 no-break \ufeff spaces"
+    };
+
+    /**
+     * Byte sequences that are not valid UTF-8: a lone continuation byte, an overlong encoding, a surrogate, a code
+     * point above U+10FFFF, a byte that never occurs and a sequence cut short by the next line.
+     */
+    private static final byte[][] MALFORMED = {
+            {(byte) 0x80}, {(byte) 0xC0, (byte) 0x80}, {(byte) 0xED, (byte) 0xA0, (byte) 0x80},
+            {(byte) 0xF4, (byte) 0x90, (byte) 0x80, (byte) 0x80}, {(byte) 0xFF}, {(byte) 0xE4, (byte) 0xB8}
+    };
+
+    /**
+     * Line counts of the synthetic files: 0 to 3, then 2^k - 1, 2^k and 2^k + 1 for every k, and maxLines itself.
+     * @param maxLines
+     * Largest line count
+     */
+    public static long[] lineCounts(long maxLines) {
+        TreeSet<Long> counts = new TreeSet<>();
+        for (long n = 0; n <= Math.min(3, maxLines); n++) {
+            counts.add(n);
+        }
+        for (long power = 4; power - 1 <= maxLines; power <<= 1) {
+            for (long n = power - 1; n <= Math.min(power + 1, maxLines); n++) {
+                counts.add(n);
+            }
+        }
+        counts.add(maxLines);
+        return counts.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    /**
+     * Writes a synthetic file with exactly the given number of lines. The content only depends on the line count.
+     * Theta(n), linear in the number of lines
+     */
+    public static void writeSyntheticFile(Path file, long lines) throws IOException {
+        SplittableRandom random = new SplittableRandom(0x5EED ^ lines);
+        byte[] previous = new byte[0];
+        boolean afterCarriageReturn = false;
+
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16)) {
+            for (long i = 0; i < lines; i++) {
+                byte[] line;
+                int kind = random.nextInt(100);
+                if (kind < 3) {
+                    line = new byte[0];
+                } else if (kind < 10) {
+                    line = previous;
+                } else if (kind < 20) {
+                    line = String.format(Locale.ROOT, "%d,%s", i, TEXT[random.nextInt(TEXT.length)])
+                            .getBytes(StandardCharsets.UTF_8);
+                } else {
+                    line = String.format(Locale.ROOT, "%d,%.6f,%.6f,%s", i, 40 + random.nextDouble(),
+                            -80 - random.nextDouble(), "ABCDEFGH".substring(random.nextInt(8)))
+                            .getBytes(StandardCharsets.US_ASCII);
+                }
+                out.write(line);
+
+                //an empty line after "\r" must not end with "\n", the two would read as one "\r\n"
+                int terminator = random.nextInt(9);
+                terminator = terminator < 6 ? terminator % 3 : terminator - 3;
+                if (terminator == 2 && afterCarriageReturn && line.length == 0)
+                    terminator = 1;
+                boolean last = i == lines - 1;
+                if (last && line.length > 0 && random.nextBoolean()) {
+                    afterCarriageReturn = false;
+                } else {
+                    out.write(TERMINATORS[terminator]);
+                    afterCarriageReturn = terminator == 0;
+                }
+                previous = line;
+            }
+        }
+    }
+
+    /**
+     * Builds the root of a synthetic file in every way there is and compares each root with the reference. Files
+     * with no lines must be rejected with an IllegalArgumentException by every builder that can read them (the
+     * reference and MerkleTree never stop on such a file and are skipped).
+     * @param lines
+     * Number of lines of the synthetic file
+     */
+    public void checkBuilds(long lines) throws Exception {
+        Path plain = directory.resolve("lines-" + lines + ".txt");
+        Path gzip = directory.resolve("lines-" + lines + ".txt.gz");
+        Path bgzf = directory.resolve("lines-" + lines + ".txt.bgz");
+        writeSyntheticFile(plain, lines);
+        compress(plain, gzip, bgzf);
+        long bytes = Files.size(plain);
+        boolean onHeap = lines <= heapLimit;
+
+        List<String> names = new ArrayList<>();
+        List<Callable<String>> builds = new ArrayList<>();
+        if (onHeap && lines > 0) {
+            names.add("reference");
+            builds.add(() -> ReferenceMerkleTree.root(plain.toString()));
+        }
+        addBuilds(names, builds, plain, gzip, bgzf, lines, onHeap);
+
+        //without a reference, the first builder that does not keep the lines on the heap sets the expected root
+        String expected = null;
+        for (int i = 0; i < builds.size(); i++) {
+            long start = System.nanoTime();
+            String root = null;
+            Throwable error = null;
+            try {
+                root = builds.get(i).call();
+            } catch (Exception | AssertionError e) {
+                error = e;
+            }
+            long nanos = System.nanoTime() - start;
+
+            boolean ok;
+            String detail;
+            if (lines == 0) {
+                ok = error instanceof IllegalArgumentException;
+                detail = ok ? "rejected" : "expected IllegalArgumentException, got " + (error == null ? root : error);
+            } else if (error != null) {
+                ok = false;
+                detail = error.toString();
+            } else {
+                if (expected == null)
+                    expected = root;
+                ok = root.equals(expected);
+                detail = ok ? root.substring(0, 16) : root + " instead of " + expected;
+            }
+            report(ok, names.get(i), lines, bytes, nanos, detail);
+        }
+
+        Files.delete(plain);
+        Files.delete(gzip);
+        Files.delete(bgzf);
+    }
+
+    /**
+     * Adds every builder under test, reading the same lines from the plain, gzip and BGZF file.
+     * @param lines
+     * Number of lines of the file, the builders that report a line count must find exactly as many
+     * @param onHeap
+     * True if the file is small enough for the builders that keep it on the heap or in direct buffers
+     */
+    private void addBuilds(List<String> names, List<Callable<String>> builds, Path plain, Path gzip, Path bgzf,
+                           long lines, boolean onHeap) {
+        if (onHeap && lines > 0) {
+            names.add("MerkleTree");
+            builds.add(() -> (String) new MerkleTree(plain.toString()).merkleRoot.getData());
+        }
+        if (onHeap) {
+            names.add("LazyMerkleTree");
+            builds.add(() -> new LazyMerkleTree(plain.toString()).getRoot());
+            //direct buffers are capped at -XX:MaxDirectMemorySize, which defaults to -Xmx
+            names.add("OffHeapMerkleTree direct");
+            builds.add(() -> {
+                try (OffHeapMerkleTree tree = new OffHeapMerkleTree(plain.toString())) {
+                    return tree.getRoot();
+                }
+            });
+        }
+        names.add("OffHeapMerkleTree mapped");
+        builds.add(() -> {
+            try (OffHeapMerkleTree tree = new OffHeapMerkleTree(plain.toString(), spillDirectory)) {
+                if (tree.getLineCount() != lines)
+                    throw new AssertionError("read " + tree.getLineCount() + " lines");
+                return tree.getRoot();
+            }
+        });
+        names.add("MerkleRootCli");
+        builds.add(() -> MerkleRootCli.root(plain));
+        names.add("AsyncBlockReader");
+        builds.add(() -> asyncReader.roots(List.of(plain), onHeap ? null : spillDirectory).get(0));
+        names.add("gzip");
+        builds.add(() -> MerkleRootCli.root(gzip));
+        names.add("BGZF");
+        builds.add(() -> MerkleRootCli.root(bgzf));
+    }
+
+    /**
+     * Writes files with one kind of invalid UTF-8 each, among valid lines, and checks that every builder rejects them
+     * with a MalformedInputException instead of hashing bytes Scanner never returns. The reference is skipped: like
+     * the original MerkleTree it stops reading at the bad bytes and returns a wrong root or never stops.
+     */
+    public void checkMalformed() throws Exception {
+        Path plain = directory.resolve("malformed.txt");
+        Path gzip = directory.resolve("malformed.txt.gz");
+        Path bgzf = directory.resolve("malformed.txt.bgz");
+
+        for (int k = 0; k < MALFORMED.length; k++) {
+            //the bad bytes go to the first, a middle or the last line, the last time without a terminator after them
+            long lines = 5 + 3L * k;
+            long bad = k % 3 == 0 ? 0 : k % 3 == 1 ? lines / 2 : lines - 1;
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(plain))) {
+                for (long i = 0; i < lines; i++) {
+                    out.write(("line " + i + " ").getBytes(StandardCharsets.US_ASCII));
+                    if (i == bad)
+                        out.write(MALFORMED[k]);
+                    if (i < lines - 1 || i != bad)
+                        out.write('\n');
+                }
+            }
+            compress(plain, gzip, bgzf);
+
+            List<String> names = new ArrayList<>();
+            List<Callable<String>> builds = new ArrayList<>();
+            addBuilds(names, builds, plain, gzip, bgzf, lines, true);
+            for (int i = 0; i < builds.size(); i++) {
+                long start = System.nanoTime();
+                Throwable error = null;
+                String root = null;
+                try {
+                    root = builds.get(i).call();
+                } catch (Exception | AssertionError e) {
+                    error = e;
+                }
+                Throwable cause = error;
+                while (cause != null && !(cause instanceof MalformedInputException)) {
+                    cause = cause.getCause();
+                }
+                report(cause != null, names.get(i) + " malformed", lines, Files.size(plain), System.nanoTime() - start,
+                        cause != null ? "rejected " + HexFormat.of().formatHex(MALFORMED[k])
+                                : "expected MalformedInputException, got " + (error == null ? root : error));
+            }
+        }
+
+        Files.delete(plain);
+        Files.delete(gzip);
+        Files.delete(bgzf);
+    }
+
+    /**
+     * Compares files with copies of themselves that repeat their last lines, which pad to exactly the same nodes as
+     * the original, and checks that OffHeapMerkleTree.diff still reports the repeated lines in both directions.
+     * @param maxLines
+     * Largest number of lines of the original files
+     */
+    public void checkDiff(long maxLines) throws Exception {
+        Path shorter = directory.resolve("diff-a.txt");
+        Path longer = directory.resolve("diff-b.txt");
+
+        //2^k - 1 lines and one more pad to the same leafs, 2^k - 2 lines and two more to the same level above them
+        for (long lines = 1; lines <= maxLines; lines = lines % 2 == 0 ? lines + 1 : lines * 2) {
+            for (int repeated = 1; repeated <= Math.min(2, lines); repeated++) {
+                StringBuilder text = new StringBuilder();
+                for (long i = 0; i < lines; i++) {
+                    text.append("line ").append(i).append('\n');
+                }
+                StringBuilder extra = new StringBuilder(text);
+                for (long i = lines - repeated; i < lines; i++) {
+                    extra.append("line ").append(i).append('\n');
+                }
+                Files.write(shorter, text.toString().getBytes(StandardCharsets.US_ASCII));
+                Files.write(longer, extra.toString().getBytes(StandardCharsets.US_ASCII));
+
+                long start = System.nanoTime();
+                long[] expected = new long[repeated];
+                for (int i = 0; i < repeated; i++) {
+                    expected[i] = lines + i;
+                }
+                try (OffHeapMerkleTree a = new OffHeapMerkleTree(shorter.toString());
+                     OffHeapMerkleTree b = new OffHeapMerkleTree(longer.toString())) {
+                    long[] forward = a.diff(b, Integer.MAX_VALUE);
+                    long[] backward = b.diff(a, Integer.MAX_VALUE);
+                    boolean ok = Arrays.equals(forward, expected) && Arrays.equals(backward, expected);
+                    report(ok, "diff with " + repeated + " repeated", lines, Files.size(longer),
+                            System.nanoTime() - start, ok ? Arrays.toString(expected)
+                                    : Arrays.toString(forward) + " and " + Arrays.toString(backward) + " instead of "
+                                    + Arrays.toString(expected));
+                }
+            }
+        }
+
+        Files.delete(shorter);
+        Files.delete(longer);
+    }
+
+    private static void compress(Path plain, Path gzip, Path bgzf) throws IOException {
+        try (InputStream in = Files.newInputStream(plain);
+             OutputStream out = new GZIPOutputStream(Files.newOutputStream(gzip), 1 << 16)) {
+            in.transferTo(out);
+        }
+        try (InputStream in = Files.newInputStream(plain);
+             OutputStream out = new BufferedOutputStream(Files.newOutputStream(bgzf), 1 << 16)) {
+            CompressedInput.compressBgzf(in, out);
+        }
+    }
+
+    /**
+     * Builds the root of the same file on many threads at once, through the builders that share per thread digests.
+     * @param lines
+     * Number of lines of the synthetic file
+     * @param threads
+     * Number of simultaneous builds
+     */
+    public void stressBuilds(long lines, int threads) throws Exception {
+        Path plain = directory.resolve("stress-" + lines + ".txt");
+        writeSyntheticFile(plain, lines);
+        String expected = ReferenceMerkleTree.root(plain.toString());
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+        try {
+            List<Future<String>> roots = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                int kind = t % 3;
+                roots.add(pool.submit(() -> {
+                    if (kind == 0)
+                        return (String) new MerkleTree(plain.toString()).merkleRoot.getData();
+                    if (kind == 1)
+                        return MerkleRootCli.root(plain);
+                    try (OffHeapMerkleTree tree = new OffHeapMerkleTree(plain.toString(), spillDirectory)) {
+                        return tree.getRoot();
+                    }
+                }));
+            }
+
+            int wrong = 0;
+            for (Future<String> root : roots) {
+                if (!root.get().equals(expected))
+                    wrong++;
+            }
+            report(wrong == 0, threads + " concurrent builds", lines * threads, Files.size(plain) * threads,
+                    System.nanoTime() - start, wrong == 0 ? expected.substring(0, 16) : wrong + " wrong roots");
+        } finally {
+            pool.shutdown();
+            Files.delete(plain);
+        }
+    }
+
+    /**
+     * Runs the list classes on many threads at once, every thread on its own lists, and compares each result with
+     * the same operation on java.util collections.
+     * @param threads
+     * Number of threads
+     * @param rounds
+     * Rounds per thread, each round exercises SinglyLinkedList, ObjectNode and OrderedLinkedListOfIntegers
+     */
+    public void stressLists(int threads, int rounds) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        AtomicLong operations = new AtomicLong();
+
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                long seed = t;
+                results.add(pool.submit(() -> {
+                    SplittableRandom random = new SplittableRandom(seed);
+                    for (int round = 0; round < rounds; round++) {
+                        String problem;
+                        try {
+                            problem = singlyLinkedListRound(random, operations);
+                            if (problem == null)
+                                problem = objectNodeRound(random, operations);
+                            if (problem == null)
+                                problem = orderedListRound(random, operations, round % 500 == 499, round / 500 % 3);
+                        } catch (RuntimeException e) {
+                            problem = e.toString();
+                        }
+                        if (problem != null)
+                            return "seed " + seed + ", round " + round + ": " + problem;
+                    }
+                    return null;
+                }));
+            }
+
+            String problem = null;
+            for (Future<String> result : results) {
+                String found = result.get();
+                if (problem == null)
+                    problem = found;
+            }
+            long nanos = System.nanoTime() - start;
+            System.out.printf(Locale.ROOT, "%s  %-26s %,14d ops %,9d ms %12.1f Mops/s  %s%n", problem == null ? "PASS" : "FAIL",
+                    threads + " threads on lists", operations.get(), nanos / 1_000_000,
+                    operations.get() * 1e3 / Math.max(1, nanos), problem == null ? "" : problem);
+            if (problem == null)
+                passed++;
+            else
+                failed++;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static String singlyLinkedListRound(SplittableRandom random, AtomicLong operations) {
+        SinglyLinkedList list = new SinglyLinkedList();
+        SinglyLinkedList other = new SinglyLinkedList();
+        ArrayDeque<Object> expected = new ArrayDeque<>();
+        int size = 1 + random.nextInt(200);
+
+        for (int i = 0; i < size; i++) {
+            Integer value = random.nextInt();
+            if (random.nextBoolean()) {
+                list.addAtFrontNode(value);
+                expected.addFirst(value);
+            } else {
+                list.addAtEndNode(value);
+                expected.addLast(value);
+            }
+        }
+        int otherSize = random.nextInt(50);
+        for (int i = 0; i < otherSize; i++) {
+            other.addAtEndNode(i);
+            expected.addLast(i);
+        }
+        list.append(other);
+        operations.addAndGet(size + otherSize + 1);
+
+        if (list.countNodes() != expected.size() || other.countNodes() != 0)
+            return "SinglyLinkedList has " + list.countNodes() + " nodes instead of " + expected.size();
+        if (!list.getLast().equals(expected.peekLast()))
+            return "SinglyLinkedList.getLast is wrong";
+        list.reset();
+        for (Object value : expected) {
+            if (!list.hasNext() || !list.next().equals(value))
+                return "SinglyLinkedList iterates in the wrong order";
+        }
+        operations.addAndGet(expected.size());
+        return list.hasNext() ? "SinglyLinkedList has extra nodes" : null;
+    }
+
+    private static String objectNodeRound(SplittableRandom random, AtomicLong operations) {
+        Integer[] values = new Integer[1 + random.nextInt(500)];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextInt(1000);
+        }
+
+        ObjectNode[] list = ObjectNode.listFromArray(values);
+        ObjectNode copy = ObjectNode.listCopy(list[0]);
+        int position = 1 + random.nextInt(values.length);
+        ObjectNode rest = ObjectNode.listSplit(list[0], position);
+        int kept = ObjectNode.listLength(list[0]);
+        ObjectNode[] first = {list[0], ObjectNode.listPosition(list[0], position)};
+        ObjectNode[] second = rest == null ? new ObjectNode[]{null, null} : new ObjectNode[]{rest, list[1]};
+        ObjectNode[] joined = ObjectNode.listConcat(first, second);
+        operations.addAndGet(5L * values.length);
+
+        if (kept != position)
+            return "ObjectNode.listSplit kept " + kept + " nodes instead of " + position;
+        if (!Arrays.equals(ObjectNode.listToArray(joined[0]), values))
+            return "ObjectNode.listConcat does not restore the split list";
+        if (!Arrays.equals(ObjectNode.listToArray(copy), values))
+            return "ObjectNode.listCopy differs from the original";
+        return joined[1].getData().equals(values[values.length - 1]) ? null : "ObjectNode.listConcat has the wrong tail";
+    }
+
+    /**
+     * One round of the ordered list operations. Large rounds run the parallel mode, and their skew picks the sizes:
+     * 0 for two long lists, 1 for a short first list and 2 for a short second list, so the galloping is exercised.
+     */
+    private static String orderedListRound(SplittableRandom random, AtomicLong operations, boolean large, int skew) {
+        int[] a;
+        int[] b;
+        if (large) {
+            a = sortedValues(random, skew == 1 ? 1 + random.nextInt(2000) : 400_000, 1_000_000);
+            b = sortedValues(random, skew == 2 ? 1 + random.nextInt(2000) : skew == 1 ? 400_000
+                    : 1 + random.nextInt(400_000), 1_000_000);
+        } else {
+            a = sortedValues(random, 1 + random.nextInt(200), 300);
+            b = sortedValues(random, 1 + random.nextInt(200), 300);
+        }
+        OrderedLinkedListOfIntegers first;
+        OrderedLinkedListOfIntegers second;
+        if (large) {
+            first = OrderedLinkedListOfIntegers.fromSorted(a, a.length);
+            second = OrderedLinkedListOfIntegers.fromSorted(b, b.length);
+        } else {
+            first = new OrderedLinkedListOfIntegers();
+            second = new OrderedLinkedListOfIntegers();
+            for (int value : shuffled(random, a)) {
+                first.sortedAdd(value);
+            }
+            for (int value : shuffled(random, b)) {
+                second.sortedAdd(value);
+            }
+            if (!Arrays.equals(OrderedLinkedListOfIntegers.toArray(first), a))
+                return "OrderedLinkedListOfIntegers.sortedAdd lost the order";
+        }
+
+        TreeSet<Integer> setA = new TreeSet<>();
+        TreeSet<Integer> setB = new TreeSet<>();
+        for (int value : a) {
+            setA.add(value);
+        }
+        for (int value : b) {
+            setB.add(value);
+        }
+        TreeSet<Integer> both = new TreeSet<>(setA);
+        both.retainAll(setB);
+        TreeSet<Integer> either = new TreeSet<>(setA);
+        either.addAll(setB);
+        TreeSet<Integer> onlyA = new TreeSet<>(setA);
+        onlyA.removeAll(setB);
+
+        OrderedLinkedListOfIntegers intersection = large
+                ? OrderedLinkedListOfIntegers.parallel(OrderedLinkedListOfIntegers.INTERSECT, first, second)
+                : OrderedLinkedListOfIntegers.intersect(first, second);
+        OrderedLinkedListOfIntegers union = large
+                ? OrderedLinkedListOfIntegers.parallel(OrderedLinkedListOfIntegers.UNION, first, second)
+                : OrderedLinkedListOfIntegers.union(first, second);
+        OrderedLinkedListOfIntegers difference = large
+                ? OrderedLinkedListOfIntegers.parallel(OrderedLinkedListOfIntegers.DIFFERENCE, first, second)
+                : OrderedLinkedListOfIntegers.difference(first, second);
+        operations.addAndGet(3L * (a.length + b.length));
+
+        if (!sameValues(OrderedLinkedListOfIntegers.toArray(intersection), both))
+            return "OrderedLinkedListOfIntegers.intersect is wrong";
+        if (!sameValues(OrderedLinkedListOfIntegers.toArray(union), either))
+            return "OrderedLinkedListOfIntegers.union is wrong";
+        if (!sameValues(OrderedLinkedListOfIntegers.toArray(difference), onlyA))
+            return "OrderedLinkedListOfIntegers.difference is wrong";
+
+        //merge relinks the nodes of both lists, so it goes last
+        int[] merged = new int[a.length + b.length];
+        System.arraycopy(a, 0, merged, 0, a.length);
+        System.arraycopy(b, 0, merged, a.length, b.length);
+        Arrays.sort(merged);
+        operations.addAndGet(a.length + b.length);
+        return Arrays.equals(OrderedLinkedListOfIntegers.toArray(OrderedLinkedListOfIntegers.merge(first, second)), merged)
+                ? null : "OrderedLinkedListOfIntegers.merge is wrong";
+    }
+
+    private static int[] sortedValues(SplittableRandom random, int count, int bound) {
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = random.nextInt(bound) - bound / 2;
+        }
+        Arrays.sort(values);
+        return values;
+    }
+
+    private static int[] shuffled(SplittableRandom random, int[] values) {
+        int[] copy = values.clone();
+        for (int i = copy.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = copy[i];
+            copy[i] = copy[j];
+            copy[j] = swap;
+        }
+        return copy;
+    }
+
+    private static boolean sameValues(int[] actual, TreeSet<Integer> expected) {
+        if (actual.length != expected.size())
+            return false;
+        Iterator<Integer> values = expected.iterator();
+        for (int value : actual) {
+            if (value != values.next())
+                return false;
+        }
+        return true;
+    }
+
+    private void report(boolean ok, String name, long lines, long bytes, long nanos, String detail) {
+        System.out.printf(Locale.ROOT, "%s  %-35s %,14d lines %,7d ms %10.1f MB/s  %s%n", ok ? "PASS" : "FAIL", name,
+                lines, nanos / 1_000_000, bytes * 1e3 / Math.max(1, nanos), detail);
+        if (ok)
+            passed++;
+        else
+            failed++;
+    }
+
+    public int getFailed() {
+        return failed;
+    }
+
+    //Main function running every check with the sizes given on the command line
+    public static void main(String[] args) throws Exception {
+        long maxLines = 131_073;
+        long heapLimit = 262_144;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int rounds = 2000;
+        Path directory = null;
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--max-lines": maxLines = Long.parseLong(args[i + 1]); break;
+                case "--heap-limit": heapLimit = Long.parseLong(args[i + 1]); break;
+                case "--threads": threads = Integer.parseInt(args[i + 1]); break;
+                case "--rounds": rounds = Integer.parseInt(args[i + 1]); break;
+                case "--dir": directory = Paths.get(args[i + 1]); break;
+                default: throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+        }
+        if (maxLines < 0 || maxLines > 100_000_000)
+            throw new IllegalArgumentException("--max-lines must be between 0 and 100000000");
+        if (!Charset.defaultCharset().equals(StandardCharsets.UTF_8)) {
+            //MerkleTree and the reference decode with the default charset, the other builders always read UTF-8
+            System.err.println("run with -Dfile.encoding=UTF-8, the default charset is " + Charset.defaultCharset());
+            System.exit(2);
+        }
+        boolean temporary = directory == null;
+        if (temporary)
+            directory = Files.createTempDirectory("merkle-harness");
+
+        MerkleTreeHarness harness = new MerkleTreeHarness(Files.createDirectories(directory), heapLimit);
+        System.out.println("Synthetic files in " + directory.toAbsolutePath());
+        for (long lines : lineCounts(maxLines)) {
+            harness.checkBuilds(lines);
+        }
+        harness.checkMalformed();
+        harness.checkDiff(Math.max(1, Math.min(maxLines, 4097)));
+        harness.stressBuilds(Math.max(1, Math.min(maxLines, 4097)), threads);
+        harness.stressLists(threads, rounds);
+        harness.asyncReader.close();
+        Files.delete(harness.spillDirectory.toPath());
+        if (temporary)
+            Files.delete(directory);
+
+        System.out.println(harness.passed + " passed, " + harness.failed + " failed");
+        System.exit(harness.getFailed() == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,575 @@
+/**
+ * @author Nikhil Kashyap
+ */
+package edu.cmu.andrew.nikhilka;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * This class is a long running daemon holding the trees of a fixed list of files, so that roots, proofs and diffs can
+ * be asked for without starting a JVM and rebuilding a tree for every query. It listens on a localhost TCP port or on
+ * a Unix domain socket and serves all connections from a few NIO event loops.
+ *
+ * Every message in either direction is a frame: a 4 byte big-endian length followed by that many bytes. A request is
+ * one operation byte followed by its arguments, a response is one status byte (STATUS_OK or STATUS_ERROR) followed by
+ * its result, or by a UTF-8 message for an error. Files are numbered in the order they were given to the server.
+ *
+ *   OP_ROOT  (int file)                       -&gt; 32 byte root
+ *   OP_PROOF (int file, long line)            -&gt; int height, height sibling hashes of 32 bytes
+ *   OP_DIFF  (int file, int other, int limit) -&gt; int count, count differing line positions as longs
+ *
+ * A diff answers with at most MAX_DIFF_LINES lines whatever its limit, a negative limit is an error.
+ *
+ * Clients may pipeline: they can send many requests before reading. Every complete request read from a connection is
+ * answered in one batch and the answers are written back in request order with as few writes as possible. A client
+ * that does not read its answers is not read either once MAX_PENDING_OUTPUT bytes of answers are waiting for it.
+ */
+public class MerkleTreeServer implements Closeable {
+
+    public static final byte OP_ROOT = 1;
+    public static final byte OP_PROOF = 2;
+    public static final byte OP_DIFF = 3;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERROR = 1;
+
+    private static final int MAX_FRAME = 1 << 20;
+
+    /**
+     * Answers waiting for a slow client beyond which its connection is not read until they are written. A connection
+     * holds at most this much output plus one answer, however many requests the client pipelines.
+     */
+    private static final int MAX_PENDING_OUTPUT = 4 * MAX_FRAME;
+
+    /**
+     * Largest number of lines a diff answers with, so that the answer fits into one frame.
+     */
+    public static final int MAX_DIFF_LINES = (MAX_FRAME - 5) / 8;
+
+    /**
+     * files - the files served, a file is addressed by its position in this list
+     * trees - trees.get(i) is the tree of files.get(i)
+     * server - the listening channel, accepted connections are handed to the loops in turn
+     * loops - the event loops, each owns a selector and the connections registered with it
+     */
+    private final List<String> files;
+    private final List<OffHeapMerkleTree> trees;
+    private final ServerSocketChannel server;
+    private final EventLoop[] loops;
+    private final Thread[] loopThreads;
+    private final Thread acceptor;
+    private final Path socketFile;
+    private volatile boolean running;
+
+    /**
+     * Builds the trees of the files in direct buffers and starts listening. All trees together must fit in
+     * -XX:MaxDirectMemorySize.
+     * @param files
+     * Files to serve, each a valid file containing at least one line of plain text
+     * @param address
+     * An InetSocketAddress (normally on localhost) or a UnixDomainSocketAddress
+     * @param loopCount
+     * Number of event loop threads serving the connections
+     */
+    public MerkleTreeServer(List<String> files, SocketAddress address, int loopCount) throws IOException {
+        this(files, address, loopCount, null);
+    }
+
+    /**
+     * Builds the trees of the files and starts listening.
+     * @param files
+     * Files to serve, each a valid file containing at least one line of plain text
+     * @param address
+     * An InetSocketAddress (normally on localhost) or a UnixDomainSocketAddress
+     * @param loopCount
+     * Number of event loop threads serving the connections
+     * @param spillDirectory
+     * Directory for the level files of the trees, or null to keep the levels in direct buffers
+     */
+    public MerkleTreeServer(List<String> files, SocketAddress address, int loopCount, File spillDirectory)
+            throws IOException {
+        this.files = new ArrayList<>(files);
+        trees = new ArrayList<>();
+        socketFile = address instanceof UnixDomainSocketAddress ? ((UnixDomainSocketAddress) address).getPath() : null;
+        loops = new EventLoop[Math.max(1, loopCount)];
+
+        //everything that can fail is opened before a thread is started, so a failure only has to close what is open
+        ServerSocketChannel channel = null;
+        try {
+            for (String f : files) {
+                trees.add(new OffHeapMerkleTree(f, spillDirectory));
+            }
+
+            if (socketFile != null) {
+                Files.deleteIfExists(socketFile);
+                channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            } else {
+                channel = ServerSocketChannel.open();
+            }
+            channel.bind(address);
+
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop();
+            }
+        } catch (IOException | RuntimeException e) {
+            for (OffHeapMerkleTree tree : trees) {
+                release(tree, e);
+            }
+            release(channel, e);
+            for (EventLoop loop : loops) {
+                release(loop == null ? null : loop.selector, e);
+            }
+            if (channel != null && socketFile != null)
+                Files.deleteIfExists(socketFile);
+            throw e;
+        }
+        server = channel;
+
+        running = true;
+        loopThreads = new Thread[loops.length];
+        for (int i = 0; i < loops.length; i++) {
+            loopThreads[i] = new Thread(loops[i], "merkle-loop-" + i);
+            loopThreads[i].setDaemon(true);
+            loopThreads[i].start();
+        }
+
+        acceptor = new Thread(this::acceptConnections, "merkle-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public SocketAddress getAddress() throws IOException {
+        return server.getLocalAddress();
+    }
+
+    public List<String> getFiles() {
+        return files;
+    }
+
+    /**
+     * Stops listening, closes every connection and releases the trees. The trees are only released once every thread
+     * has stopped, so no request can read a tree that is being closed.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        server.close();
+        join(acceptor);
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+        for (Thread thread : loopThreads) {
+            join(thread);
+        }
+
+        for (OffHeapMerkleTree tree : trees) {
+            tree.close();
+        }
+        if (socketFile != null)
+            Files.deleteIfExists(socketFile);
+    }
+
+    /**
+     * Closes a resource opened by a constructor that is failing, keeping any error of the close with the failure.
+     */
+    private static void release(Closeable resource, Exception failure) {
+        if (resource == null)
+            return;
+        try {
+            resource.close();
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    /**
+     * Waits for a thread to end, even if the waiting thread is interrupted, and keeps the interrupt for the caller.
+     */
+    private static void join(Thread thread) {
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private void acceptConnections() {
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel channel = server.accept();
+                channel.configureBlocking(false);
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            } catch (IOException e) {
+                if (running)
+                    e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Answers a single request. The request buffer is positioned after the length of the frame.
+     */
+    private void answer(ByteBuffer request, Output out) {
+        int start = out.beginFrame();
+        try {
+            byte op = request.get();
+            if (op == OP_ROOT) {
+                byte[] root = tree(request.getInt()).getRootDigest();
+                out.ensure(1 + root.length).put(STATUS_OK).put(root);
+            } else if (op == OP_PROOF) {
+                OffHeapMerkleTree tree = tree(request.getInt());
+                byte[][] siblings = tree.getProof(request.getLong()).getSiblings();
+                ByteBuffer buffer = out.ensure(5 + siblings.length * OffHeapHashStore.DIGEST_LENGTH);
+                buffer.put(STATUS_OK).putInt(siblings.length);
+                for (byte[] sibling : siblings) {
+                    buffer.put(sibling);
+                }
+            } else if (op == OP_DIFF) {
+                OffHeapMerkleTree tree = tree(request.getInt());
+                OffHeapMerkleTree other = tree(request.getInt());
+                long[] lines = tree.diff(other, Math.min(request.getInt(), MAX_DIFF_LINES));
+                ByteBuffer buffer = out.ensure(5 + 8 * lines.length);
+                buffer.put(STATUS_OK).putInt(lines.length);
+                for (long line : lines) {
+                    buffer.putLong(line);
+                }
+            } else {
+                throw new IllegalArgumentException("unknown operation " + op);
+            }
+        } catch (RuntimeException e) {
+            out.rewind(start);
+            String text = e.getMessage() == null ? e.toString() : e.getMessage();
+            byte[] message = text.getBytes(StandardCharsets.UTF_8);
+            out.ensure(1 + message.length).put(STATUS_ERROR).put(message);
+        }
+        out.endFrame(start);
+    }
+
+    private OffHeapMerkleTree tree(int file) {
+        if (file < 0 || file >= trees.size())
+            throw new IllegalArgumentException("no file " + file + ", the server holds " + trees.size() + " files");
+        return trees.get(file);
+    }
+
+    /**
+     * A growable buffer collecting the response frames of one connection.
+     */
+    private static class Output {
+        private ByteBuffer buffer = ByteBuffer.allocate(8192);
+
+        ByteBuffer ensure(int bytes) {
+            if (buffer.remaining() < bytes) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+                buffer.flip();
+                grown.put(buffer);
+                buffer = grown;
+            }
+            return buffer;
+        }
+
+        int beginFrame() {
+            ensure(4).putInt(0);
+            return buffer.position();
+        }
+
+        void endFrame(int start) {
+            buffer.putInt(start - 4, buffer.position() - start);
+        }
+
+        void rewind(int start) {
+            buffer.position(start);
+        }
+    }
+
+    /**
+     * The state of one client connection: bytes read but not yet parsed and answers not yet written. held is set
+     * while complete requests wait in the input because the output is full.
+     */
+    private static class Connection {
+        private final SocketChannel channel;
+        private ByteBuffer input = ByteBuffer.allocate(8192);
+        private final Output output = new Output();
+        private boolean held;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * One event loop thread with its own selector. New connections are queued by the acceptor and registered by the
+     * loop itself, because registering with a selector that is blocked in select would block the acceptor.
+     */
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<SocketChannel> pending;
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+            pending = new ConcurrentLinkedQueue<>();
+        }
+
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+
+                    SocketChannel channel;
+                    while ((channel = pending.poll()) != null) {
+                        channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+                    }
+
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable())
+                                read(key, connection);
+                            if (key.isValid() && key.isWritable())
+                                write(key, connection);
+                        } catch (IOException e) {
+                            key.cancel();
+                            connection.channel.close();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException e) {
+                if (running)
+                    e.printStackTrace();
+            } finally {
+                SocketChannel unregistered;
+                while ((unregistered = pending.poll()) != null) {
+                    try {
+                        unregistered.close();
+                    } catch (IOException ignored) {
+                        //the loop is shutting down anyway
+                    }
+                }
+                for (SelectionKey key : selector.keys()) {
+                    try {
+                        key.channel().close();
+                    } catch (IOException ignored) {
+                        //the loop is shutting down anyway
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                    //the loop is shutting down anyway
+                }
+            }
+        }
+
+        /**
+         * Reads what the client sent, answers the complete requests in it as one batch and starts writing.
+         */
+        private void read(SelectionKey key, Connection connection) throws IOException {
+            if (connection.channel.read(connection.input) == -1) {
+                key.cancel();
+                connection.channel.close();
+                return;
+            }
+
+            connection.held = answerAll(connection);
+            write(key, connection);
+        }
+
+        /**
+         * Answers the complete requests in the input until MAX_PENDING_OUTPUT bytes of answers are waiting.
+         * @return
+         * True if requests are left in the input because the output is full
+         */
+        private boolean answerAll(Connection connection) throws IOException {
+            ByteBuffer input = connection.input;
+            boolean full = false;
+            input.flip();
+            while (input.remaining() >= 4) {
+                int length = input.getInt(input.position());
+                if (length <= 0 || length > MAX_FRAME)
+                    throw new IOException("bad frame length " + length);
+                if (input.remaining() < 4 + length)
+                    break;
+                if (connection.output.buffer.position() >= MAX_PENDING_OUTPUT) {
+                    full = true;
+                    break;
+                }
+
+                ByteBuffer request = input.slice(input.position() + 4, length);
+                input.position(input.position() + 4 + length);
+                answer(request, connection.output);
+            }
+            input.compact();
+
+            //make room for a frame that is larger than the buffer
+            if (!full && input.remaining() == 0) {
+                ByteBuffer grown = ByteBuffer.allocate(input.capacity() * 2);
+                input.flip();
+                grown.put(input);
+                connection.input = grown;
+            }
+            return full;
+        }
+
+        /**
+         * Writes as much of the pending answers as the socket takes, answering the requests held back as soon as the
+         * output has room again. While MAX_PENDING_OUTPUT bytes are still waiting the connection only waits for
+         * OP_WRITE, so the client cannot make the server buffer more by sending more requests.
+         */
+        private void write(SelectionKey key, Connection connection) throws IOException {
+            ByteBuffer output;
+            while (true) {
+                output = connection.output.buffer;
+                output.flip();
+                connection.channel.write(output);
+                output.compact();
+                if (!connection.held || output.position() >= MAX_PENDING_OUTPUT)
+                    break;
+                connection.held = answerAll(connection);
+            }
+
+            int ops = output.position() < MAX_PENDING_OUTPUT ? SelectionKey.OP_READ : 0;
+            if (output.position() > 0)
+                ops |= SelectionKey.OP_WRITE;
+            key.interestOps(ops);
+        }
+    }
+
+    /**
+     * A minimal blocking client of the server, mostly to show the protocol.
+     */
+    public static class Client implements Closeable {
+        private final SocketChannel channel;
+
+        public Client(SocketAddress address) throws IOException {
+            channel = address instanceof UnixDomainSocketAddress
+                    ? SocketChannel.open(StandardProtocolFamily.UNIX) : SocketChannel.open();
+            channel.connect(address);
+        }
+
+        public static ByteBuffer rootRequest(int file) {
+            return frame(ByteBuffer.allocate(5).put(OP_ROOT).putInt(file));
+        }
+
+        public static ByteBuffer proofRequest(int file, long line) {
+            return frame(ByteBuffer.allocate(13).put(OP_PROOF).putInt(file).putLong(line));
+        }
+
+        public static ByteBuffer diffRequest(int file, int other, int limit) {
+            return frame(ByteBuffer.allocate(13).put(OP_DIFF).putInt(file).putInt(other).putInt(limit));
+        }
+
+        /**
+         * Sends all requests in one write, then reads one answer per request.
+         * @return
+         * The body of every answer, positioned after its status byte which is checked
+         * @exception IOException
+         * Indicates a broken connection or an error status from the server
+         */
+        public ByteBuffer[] pipeline(ByteBuffer... requests) throws IOException {
+            int total = 0;
+            for (ByteBuffer request : requests) {
+                total += request.remaining();
+            }
+            ByteBuffer all = ByteBuffer.allocate(total);
+            for (ByteBuffer request : requests) {
+                all.put(request.duplicate());
+            }
+            all.flip();
+            while (all.hasRemaining()) {
+                channel.write(all);
+            }
+
+            ByteBuffer[] answers = new ByteBuffer[requests.length];
+            for (int i = 0; i < answers.length; i++) {
+                ByteBuffer length = readFully(ByteBuffer.allocate(4));
+                ByteBuffer body = readFully(ByteBuffer.allocate(length.getInt()));
+                if (body.get() != STATUS_OK)
+                    throw new IOException(StandardCharsets.UTF_8.decode(body).toString());
+                answers[i] = body;
+            }
+            return answers;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        private ByteBuffer readFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1)
+                    throw new IOException("server closed the connection");
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        private static ByteBuffer frame(ByteBuffer body) {
+            body.flip();
+            ByteBuffer framed = ByteBuffer.allocate(4 + body.remaining());
+            framed.putInt(body.remaining()).put(body);
+            framed.flip();
+            return framed;
+        }
+    }
+
+    //Main function serving the given files, or the project files and a pipelined demo query when started without any
+    public static void main(String[] args) throws Exception {
+        if (args.length > 1) {
+            SocketAddress address = args[0].startsWith("unix:")
+                    ? UnixDomainSocketAddress.of(args[0].substring(5))
+                    : new InetSocketAddress("localhost", Integer.parseInt(args[0]));
+            List<String> served = List.of(args).subList(1, args.length);
+            //the served files can be of any size, so their levels are spilled instead of filling direct memory
+            MerkleTreeServer server = new MerkleTreeServer(served, address, 2,
+                    new File(System.getProperty("java.io.tmpdir")));
+            System.out.println("Serving " + served.size() + " files on " + server.getAddress());
+            Thread.currentThread().join();
+        }
+
+        List<String> served = List.of("CrimeLatLonXY1990_Size2.csv", "CrimeLatLonXY1990_Size3.csv", "smallFile.txt",
+                "CrimeLatLonXY.csv");
+        try (MerkleTreeServer server = new MerkleTreeServer(served, new InetSocketAddress("localhost", 0), 2);
+             Client client = new Client(server.getAddress())) {
+            ByteBuffer[] answers = client.pipeline(Client.rootRequest(0), Client.rootRequest(3),
+                    Client.proofRequest(3, 42), Client.diffRequest(0, 1, 10));
+
+            byte[] root = new byte[32];
+            answers[0].get(root);
+            System.out.println("Root of " + served.get(0) + " : " + MerkleTree.toHex(root));
+            answers[1].get(root);
+            System.out.println("Root of " + served.get(3) + " : " + MerkleTree.toHex(root));
+            System.out.println("Proof of line 42 has " + answers[2].getInt() + " siblings");
+            System.out.println("Lines differing between the first two files : " + answers[3].getInt());
+        }
+    }
+}
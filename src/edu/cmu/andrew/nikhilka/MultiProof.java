@@ -0,0 +1,196 @@
+/**
+ * @author Nikhil Kashyap
+ */
+package edu.cmu.andrew.nikhilka;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * This class proves that a whole set of leafs belongs to a Merkle tree with a single combined proof. Separate audit
+ * paths would repeat the siblings they share near the root and would ship hashes that the verifier can compute from
+ * the other proven leafs. A MultiProof holds every needed sibling exactly once, in the order in which a single
+ * bottom-up pass over the sorted leaf indices consumes them.
+ */
+public class MultiProof {
+
+    /**
+     * indices - positions of the proven leafs, sorted and without duplicates
+     * hashes - sibling hashes the verifier cannot compute itself, level by level and left to right
+     * height - number of levels above the leafs
+     */
+    private final long[] indices;
+    private final byte[][] hashes;
+    private final int height;
+
+    public MultiProof(long[] indices, byte[][] hashes, int height) {
+        this.indices = indices;
+        this.hashes = hashes;
+        this.height = height;
+    }
+
+    /**
+     * Builds the combined proof of a set of leafs of a tree.
+     * Theta(k log(n / k)), for k proven leafs out of n
+     * @param tree
+     * Tree holding the leafs
+     * @param leafIndices
+     * Positions of the leafs to prove, in any order and possibly repeated, each 0 &lt;= index &lt; getLineCount()
+     * @return
+     * Combined proof of the leafs, covering each distinct index once
+     */
+    public static MultiProof of(OffHeapMerkleTree tree, long[] leafIndices) {
+        long[] known = sortedUnique(leafIndices);
+        for (long index : known) {
+            if (index < 0 || index >= tree.getLineCount())
+                throw new IndexOutOfBoundsException("line " + index + " is outside of a file with "
+                        + tree.getLineCount() + " lines");
+        }
+
+        byte[][] hashes = new byte[16][];
+        int count = 0;
+        long[] level = known;
+        for (int depth = 0; depth < tree.getHeight(); depth++) {
+            long[] parents = new long[level.length];
+            int parentCount = 0;
+
+            for (int i = 0; i < level.length; i++) {
+                long index = level[i];
+                //a sibling that is proven itself, or computed from proven leafs, is never shipped
+                if ((index & 1) == 0 && i + 1 < level.length && level[i + 1] == index + 1) {
+                    i++;
+                } else {
+                    if (count == hashes.length)
+                        hashes = Arrays.copyOf(hashes, count * 2);
+                    hashes[count++] = tree.getNode(depth, index ^ 1);
+                }
+                parents[parentCount++] = index >>> 1;
+            }
+            level = Arrays.copyOf(parents, parentCount);
+        }
+
+        return new MultiProof(known, Arrays.copyOf(hashes, count), tree.getHeight());
+    }
+
+    public long[] getIndices() {
+        return indices.clone();
+    }
+
+    /**
+     * Number of sibling hashes in the proof.
+     */
+    public int size() {
+        return hashes.length;
+    }
+
+    /**
+     * Recomputes the root from the digests of the proven leafs in a single bottom-up pass.
+     * Theta(k log(n / k)), for k proven leafs out of n
+     * @param leafDigests
+     * 32 byte digest of every proven leaf, in the order of getIndices()
+     * @return
+     * 32 byte root implied by the proof, or null if the proof does not have the right number of hashes
+     * @exception IllegalArgumentException
+     * If the indices are not increasing or not all below 2^height. Only the low height bits of an index choose
+     * between left and right, so a larger index would verify as the leaf it aliases.
+     */
+    public byte[] computeRoot(byte[][] leafDigests) {
+        if (leafDigests.length != indices.length)
+            throw new IllegalArgumentException("expected " + indices.length + " leafs, got " + leafDigests.length);
+        if (height < 0 || height > 62)
+            throw new IllegalArgumentException("height " + height + " is not between 0 and 62");
+        for (int i = 0; i < indices.length; i++) {
+            if (indices[i] < 0 || indices[i] >= 1L << height)
+                throw new IllegalArgumentException("leaf " + indices[i] + " is outside of a tree of height " + height);
+            if (i > 0 && indices[i] <= indices[i - 1])
+                throw new IllegalArgumentException("leaf indices are not increasing at " + indices[i]);
+        }
+
+        long[] level = indices.clone();
+        byte[][] nodes = leafDigests.clone();
+        int length = level.length;
+        int next = 0;
+
+        for (int depth = 0; depth < height; depth++) {
+            int parentCount = 0;
+            for (int i = 0; i < length; i++) {
+                long index = level[i];
+                byte[] parent;
+                if ((index & 1) == 0 && i + 1 < length && level[i + 1] == index + 1) {
+                    parent = MerkleTree.combineDigests(nodes[i], nodes[i + 1]);
+                    i++;
+                } else {
+                    if (next == hashes.length)
+                        return null;
+                    byte[] sibling = hashes[next++];
+                    parent = (index & 1) == 0 ? MerkleTree.combineDigests(nodes[i], sibling)
+                            : MerkleTree.combineDigests(sibling, nodes[i]);
+                }
+                //parents are written over the front of the arrays, they never overtake the children being read
+                level[parentCount] = index >>> 1;
+                nodes[parentCount] = parent;
+                parentCount++;
+            }
+            length = parentCount;
+        }
+
+        return next == hashes.length && length == 1 ? nodes[0] : null;
+    }
+
+    /**
+     * Checks that the given leaf digests are the leafs at getIndices() of the tree with the given root.
+     * @return
+     * true if the proof leads from the leafs to the root, else false
+     */
+    public boolean verify(byte[][] leafDigests, byte[] root) {
+        byte[] computed = computeRoot(leafDigests);
+        return computed != null && MessageDigest.isEqual(computed, root);
+    }
+
+    /**
+     * Checks that the given lines are the lines at getIndices() of the file with the given hex root.
+     * @param lines
+     * Plain text of every proven line, in the order of getIndices()
+     */
+    public boolean verify(String[] lines, String root) {
+        byte[][] leafDigests = new byte[lines.length][];
+        for (int i = 0; i < lines.length; i++) {
+            byte[] text = lines[i].getBytes(StandardCharsets.UTF_8);
+            leafDigests[i] = MerkleTree.digest(text, 0, text.length);
+        }
+        return verify(leafDigests, MerkleTree.fromHex(root));
+    }
+
+    private static long[] sortedUnique(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int length = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (length == 0 || sorted[length - 1] != sorted[i])
+                sorted[length++] = sorted[i];
+        }
+        return Arrays.copyOf(sorted, length);
+    }
+
+    //Main function comparing the size of a multi-proof with the size of separate audit paths
+    public static void main(String[] args) throws Exception {
+        try (OffHeapMerkleTree tree = new OffHeapMerkleTree("CrimeLatLonXY.csv")) {
+            long[] records = new long[300];
+            for (int i = 0; i < records.length; i++) {
+                records[i] = (i * 7919L) % tree.getLineCount();
+            }
+
+            MultiProof proof = MultiProof.of(tree, records);
+            long[] indices = proof.getIndices();
+            byte[][] leafs = new byte[indices.length][];
+            for (int i = 0; i < indices.length; i++) {
+                leafs[i] = tree.getLeaf(indices[i]);
+            }
+
+            System.out.println("Records proven            : " + indices.length);
+            System.out.println("Hashes in separate proofs : " + (long) indices.length * tree.getHeight());
+            System.out.println("Hashes in the multi-proof : " + proof.size());
+            System.out.println("Multi-proof verifies      : " + proof.verify(leafs, tree.getRootDigest()));
+        }
+    }
+}
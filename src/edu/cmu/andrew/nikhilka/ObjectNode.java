@@ -131,6 +131,17 @@ public class ObjectNode
         return copyHead;
     }
 
+    /**
+     * Copy a list recursively.
+     * @param source
+     *   the head of a linked list that will be copied (which may be
+     *   an empty list in where source is null)
+     * @return
+     *   the head reference for the copy
+     * @note
+     *   Every node uses a stack frame, so lists of more than a few thousand
+     *   nodes overflow the stack. Use listCopy or listCopyWithTail for those.
+     **/
     public static ObjectNode listCopy_rec(ObjectNode source){
         if(source == null)
             return null;
@@ -204,6 +215,15 @@ public class ObjectNode
         return answer;
     }
 
+    /**
+     * Compute the number of nodes in a linked list, counting the head
+     * node and handing the rest of the list to listLength.
+     * @param head
+     *   the head reference for a linked list (which may be an empty list
+     *   with a null head)
+     * @return
+     *   the number of nodes in the list with the given head
+     **/
     public static int listLength_rec(ObjectNode head){
         if(head == null)
             return 0;
@@ -266,6 +286,127 @@ public class ObjectNode
     }
 
 
+    /**
+     * Build a list holding the elements of an array, in the same order.
+     * @param items
+     *   the data for the nodes of the new list (which may be empty)
+     * @return
+     *   an array where the [0] element is a head reference and the [1]
+     *   element is a tail reference for the new list (both null if items is
+     *   empty)
+     * @note
+     *   The list is built from the last element to the first, so exactly one
+     *   node is allocated per element and no tail has to be followed.
+     * @exception OutOfMemoryError
+     *   Indicates that there is insufficient memory for the new list.
+     **/
+    public static ObjectNode[ ] listFromArray(Object[ ] items)
+    {
+        ObjectNode[ ] answer = new ObjectNode[2];
+        ObjectNode cursor = null;
+
+        for (int i = items.length - 1; i >= 0; i--)
+        {
+            cursor = new ObjectNode(items[i], cursor);
+            if (answer[1] == null)
+                answer[1] = cursor;
+        }
+
+        answer[0] = cursor;
+        return answer;
+    }
+
+
+    /**
+     * Copy the data of a list into an array.
+     * @param head
+     *   the head reference for a linked list (which may be an empty list
+     *   with a null head)
+     * @return
+     *   an array holding the data of every node of the list, in list order
+     * @exception OutOfMemoryError
+     *   Indicates that there is insufficient memory for the array.
+     **/
+    public static Object[ ] listToArray(ObjectNode head)
+    {
+        Object[ ] answer = new Object[listLength(head)];
+        int i = 0;
+
+        for (ObjectNode cursor = head; cursor != null; cursor = cursor.link)
+            answer[i++] = cursor.data;
+
+        return answer;
+    }
+
+
+    /**
+     * Split a list in two after a specified position, without copying.
+     * @param head
+     *   the head reference for a linked list
+     * @param position
+     *   number of nodes that stay on the first list
+     * @precondition
+     *   position &gt; 0.
+     * @return
+     *   The head reference of the second list, which starts with the node at
+     *   position + 1. The node at position is now the tail of the first list.
+     *   If the list has no more than position nodes, nothing changes and
+     *   null is returned.
+     * @exception IllegalArgumentException
+     *   Indicates that position is not positive.
+     **/
+    public static ObjectNode listSplit(ObjectNode head, int position)
+    {
+        ObjectNode last = listPosition(head, position);
+        ObjectNode rest;
+
+        if (last == null)
+            return null;
+
+        rest = last.link;
+        last.link = null;
+        return rest;
+    }
+
+
+    /**
+     * Join two lists given by head and tail references, without copying.
+     * @param first
+     *   an array where [0] is the head and [1] is the tail of the first list
+     *   (both null for an empty list), as returned by listCopyWithTail,
+     *   listPart or listFromArray
+     * @param second
+     *   head and tail of the second list in the same form
+     * @return
+     *   an array where [0] is the head and [1] is the tail of the joined list
+     * @postcondition
+     *   The tail of the first list now links to the head of the second list.
+     *   Takes constant time, however long the lists are.
+     **/
+    public static ObjectNode[ ] listConcat(ObjectNode[ ] first, ObjectNode[ ] second)
+    {
+        ObjectNode[ ] answer = new ObjectNode[2];
+
+        if (first[0] == null)
+        {
+            answer[0] = second[0];
+            answer[1] = second[1];
+            return answer;
+        }
+        if (second[0] == null)
+        {
+            answer[0] = first[0];
+            answer[1] = first[1];
+            return answer;
+        }
+
+        first[1].link = second[0];
+        answer[0] = first[0];
+        answer[1] = second[1];
+        return answer;
+    }
+
+
     /**
      * Find a node at a specified position in a linked list.
      * @param head
@@ -450,6 +591,18 @@ public class ObjectNode
         //recursive list length
         System.out.println("Number of nodes in k2 : " + ObjectNode.listLength_rec(k2));
 
+        //bulk operations on a list far too long for the recursive methods
+        Integer[] numbers = new Integer[1000000];
+        for (int i = 0; i < numbers.length; i++)
+            numbers[i] = i;
+        ObjectNode[] big = ObjectNode.listFromArray(numbers);
+        ObjectNode[] copy = ObjectNode.listCopyWithTail(big[0]);
+        ObjectNode[] secondHalf = {ObjectNode.listSplit(copy[0], numbers.length / 2), copy[1]};
+        ObjectNode[] firstHalf = {copy[0], ObjectNode.listPosition(copy[0], numbers.length / 2)};
+        ObjectNode[] swapped = ObjectNode.listConcat(secondHalf, firstHalf);
+        System.out.println("Nodes after split and concat : " + ObjectNode.listLength(swapped[0])
+                + ", head " + swapped[0].getData() + ", tail " + swapped[1].getData());
+
     }
 
 
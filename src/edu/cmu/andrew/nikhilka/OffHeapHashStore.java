@@ -0,0 +1,175 @@
+/**
+ * @author Nikhil Kashyap
+ */
+package edu.cmu.andrew.nikhilka;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * This class stores a growing list of 32 byte SHA-256 digests outside of the Java heap. The digests are kept in
+ * chunks of direct ByteBuffers, or in chunks of a memory mapped file when a spill directory is given, so a level of a
+ * Merkle tree costs no heap space and no garbage collection work. Direct buffers still count against
+ * -XX:MaxDirectMemorySize, which defaults to the maximum heap size, so only the memory mapped store holds levels with
+ * billions of nodes.
+ */
+public class OffHeapHashStore implements Closeable {
+
+    public static final int DIGEST_LENGTH = 32;
+
+    /**
+     * Direct chunks are small so that the levels of small trees stay cheap, mapped chunks are large so that huge trees
+     * do not run out of memory mappings. Both are powers of two so an index splits into chunk and slot with shifts.
+     */
+    private static final int DIRECT_CHUNK_SHIFT = 15;
+    private static final int MAPPED_CHUNK_SHIFT = 22;
+
+    /**
+     * chunks - the buffers holding the digests, chunk i holds digests [i << chunkShift, (i + 1) << chunkShift)
+     * channel - the spill file when the store is memory mapped, null for direct buffers
+     * spillFile - the temporary file behind channel, deleted on close
+     * size - number of digests stored
+     */
+    private final ArrayList<ByteBuffer> chunks;
+    private final int chunkShift;
+    private final RandomAccessFile channelFile;
+    private final FileChannel channel;
+    private final File spillFile;
+    private long size;
+
+    /**
+     * Creates an empty store backed by direct ByteBuffers.
+     * @exception
+     * add throws OutOfMemoryError once the digests exceed -XX:MaxDirectMemorySize.
+     */
+    public OffHeapHashStore() {
+        chunks = new ArrayList<>();
+        chunkShift = DIRECT_CHUNK_SHIFT;
+        channelFile = null;
+        channel = null;
+        spillFile = null;
+        size = 0;
+    }
+
+    /**
+     * Creates an empty store backed by a temporary memory mapped file.
+     * @param spillDirectory
+     * Directory in which the temporary file is created
+     * @postcondition
+     * A new temporary file exists in spillDirectory, it is removed again by close.
+     */
+    public OffHeapHashStore(File spillDirectory) throws IOException {
+        chunks = new ArrayList<>();
+        chunkShift = MAPPED_CHUNK_SHIFT;
+        spillFile = File.createTempFile("merkle-level", ".bin", spillDirectory);
+        spillFile.deleteOnExit();
+        channelFile = new RandomAccessFile(spillFile, "rw");
+        channel = channelFile.getChannel();
+        size = 0;
+    }
+
+    /**
+     * Adds a digest at the end of the store.
+     * Theta(1), amortized constant time complexity
+     * @param digest
+     * 32 byte digest to add
+     * @postcondition
+     * The digest is stored at index size() - 1.
+     */
+    public void add(byte[] digest) {
+        int chunk = (int) (size >>> chunkShift);
+        if (chunk == chunks.size())
+            chunks.add(allocateChunk(chunk));
+
+        chunks.get(chunk).put(slot(size), digest, 0, DIGEST_LENGTH);
+        size++;
+    }
+
+    /**
+     * Copies the digest at the given index into dst.
+     * Theta(1), constant time complexity
+     * @param index
+     * Position of the digest, 0 &lt;= index &lt; size()
+     * @param dst
+     * Array of at least 32 bytes receiving the digest
+     */
+    public void get(long index, byte[] dst) {
+        checkIndex(index);
+        chunks.get((int) (index >>> chunkShift)).get(slot(index), dst, 0, DIGEST_LENGTH);
+    }
+
+    /**
+     * Returns a copy of the digest at the given index.
+     * Theta(1), constant time complexity
+     * @param index
+     * Position of the digest, 0 &lt;= index &lt; size()
+     * @return
+     * New 32 byte array holding the digest
+     */
+    public byte[] get(long index) {
+        byte[] digest = new byte[DIGEST_LENGTH];
+        get(index, digest);
+        return digest;
+    }
+
+    /**
+     * Replaces the digest at the given index.
+     * Theta(1), constant time complexity
+     * @param index
+     * Position of the digest, 0 &lt;= index &lt; size()
+     * @param digest
+     * 32 byte digest to store
+     */
+    public void set(long index, byte[] digest) {
+        checkIndex(index);
+        chunks.get((int) (index >>> chunkShift)).put(slot(index), digest, 0, DIGEST_LENGTH);
+    }
+
+    /**
+     * Number of digests in the store.
+     * Theta(1), constant time complexity
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Releases the chunks and removes the spill file, if any. The store must not be used afterwards.
+     */
+    @Override
+    public void close() throws IOException {
+        chunks.clear();
+        size = 0;
+        if (channel != null) {
+            channel.close();
+            channelFile.close();
+            spillFile.delete();
+        }
+    }
+
+    private ByteBuffer allocateChunk(int chunk) {
+        long chunkBytes = (long) DIGEST_LENGTH << chunkShift;
+
+        if (channel == null)
+            return ByteBuffer.allocateDirect((int) chunkBytes);
+
+        try {
+            return channel.map(FileChannel.MapMode.READ_WRITE, chunk * chunkBytes, chunkBytes);
+        } catch (IOException e) {
+            throw new IllegalStateException("could not map spill file " + spillFile, e);
+        }
+    }
+
+    private int slot(long index) {
+        return (int) (index & ((1L << chunkShift) - 1)) * DIGEST_LENGTH;
+    }
+
+    private void checkIndex(long index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("index " + index + " is outside of the store of size " + size);
+    }
+}
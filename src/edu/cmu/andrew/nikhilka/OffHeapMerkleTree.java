@@ -0,0 +1,387 @@
+/**
+ * @author Nikhil Kashyap
+ */
+package edu.cmu.andrew.nikhilka;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * This class builds the same Merkle tree as MerkleTree, but keeps every level of the tree as raw digests in an
+ * OffHeapHashStore instead of hex Strings in ObjectNodes. Lines are hashed straight from the bytes of the file, so
+ * neither the lines nor the hashes live on the heap. Without a spill directory the levels are direct buffers, which
+ * the JVM caps at -XX:MaxDirectMemorySize (by default as large as -Xmx), so the tree of n lines needs about 64n bytes
+ * of it. With a spill directory the levels are memory mapped files and the tree size is limited only by the disk.
+ * Because all levels are kept, audit paths can be produced for any leaf after the build.
+ */
+public class OffHeapMerkleTree implements Closeable {
+
+    /**
+     * spillDirectory - directory for the memory mapped level files, null to keep the levels in direct buffers
+     * levels - levels.get(0) holds the leaf hashes, the last level holds only the Merkle root. Every level except the
+     *          root is padded to an even number of nodes by duplicating its last node, exactly like MerkleTree does.
+     * lineCount - number of lines read from the file, i.e. the leafs without padding
+     */
+    private final File spillDirectory;
+    private final ArrayList<OffHeapHashStore> levels;
+    private long lineCount;
+
+    public OffHeapMerkleTree(String file) throws IOException {
+        this(file, null);
+    }
+
+    /**
+     * Builds the tree of a file with its levels spilled to memory mapped files.
+     * @param file
+     * Is a valid file containing at least one line of plain text.
+     * @param spillDirectory
+     * Directory for the level files, or null to keep the levels in direct buffers
+     */
+    public OffHeapMerkleTree(String file, File spillDirectory) throws IOException {
+        this.spillDirectory = spillDirectory;
+        levels = new ArrayList<>();
+        levels.add(newStore());
+        try {
+            readFile(file);
+            calculateRootNode();
+        } catch (IOException | RuntimeException e) {
+            //the caller never gets the tree, so its stores would only be released at exit
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Builds the tree above leaf hashes which have already been computed, e.g. by another reader of the file.
+     * @param leaves
+     * Hash of every line in order, without padding. The tree takes ownership of the store.
+     * @param spillDirectory
+     * Directory for the level files, or null to keep the levels in direct buffers
+     */
+    OffHeapMerkleTree(OffHeapHashStore leaves, File spillDirectory) throws IOException {
+        this.spillDirectory = spillDirectory;
+        levels = new ArrayList<>();
+        levels.add(leaves);
+        lineCount = leaves.size();
+        try {
+            padLeaves();
+            calculateRootNode();
+        } catch (IOException | RuntimeException e) {
+            //the leaves belong to the tree now, so they are released with the levels built above them
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Builds a tree over the content defined chunks of any file, text or binary, instead of its lines. Each chunk is
+     * one leaf (getLineCount() then counts chunks), so an insertion only changes the leafs around it. The leafs after
+     * it move to other positions, so two versions of a file are compared with diffByContent, not diff.
+     * Theta(n), linear in the size of the file
+     * @param file
+     * A valid, non empty file
+     * @param minSize
+     * Smallest chunk in bytes
+     * @param averageSize
+     * Targeted average chunk size in bytes
+     * @param maxSize
+     * Largest chunk in bytes
+     * @param spillDirectory
+     * Directory for the level files, or null to keep the levels in direct buffers
+     */
+    public static OffHeapMerkleTree ofChunks(String file, int minSize, int averageSize, int maxSize,
+                                             File spillDirectory) throws IOException, NoSuchAlgorithmException {
+        OffHeapHashStore leaves = spillDirectory == null ? new OffHeapHashStore() : new OffHeapHashStore(spillDirectory);
+        try {
+            ContentDefinedChunker chunker = new ContentDefinedChunker(minSize, averageSize, maxSize,
+                    (offset, length, digest) -> leaves.add(digest));
+            try (InputStream in = new FileInputStream(file)) {
+                chunker.readAll(in);
+            }
+        } catch (IOException | RuntimeException e) {
+            leaves.close();
+            throw e;
+        }
+        return new OffHeapMerkleTree(leaves, spillDirectory);
+    }
+
+    /**
+     * Reads each line from a file and adds its hash to the leaf level. Gzip and BGZF files are inflated on the fly.
+     * Theta(n), linear time complexity (depending on the size of file)
+     * @param file
+     * Is a valid file containing at least one line of plain text, either plain or compressed.
+     * @postcondition
+     * The leaf level holds the hash of every line, padded to an even number of nodes.
+     */
+    public void readFile(String file) throws IOException {
+        OffHeapHashStore leaves = levels.get(0);
+        CompressedInput.readLines(Paths.get(file), (buffer, offset, length) -> leaves.add(MerkleTree.digest(buffer, offset, length)));
+        lineCount = leaves.size();
+        padLeaves();
+    }
+
+    /**
+     * Calculates the levels above the leafs by combining the adjacent hashes of each level, duplicating the last node
+     * of a level when it has an odd number of nodes, until only the Merkle root is left.
+     * Theta(n), Linear Time complexity
+     * @precondition
+     * The leaf level is populated and padded to an even number of nodes
+     * @postcondition
+     * The last level holds only the Merkle root
+     */
+    public void calculateRootNode() throws IOException {
+        OffHeapHashStore current = levels.get(levels.size() - 1);
+        byte[] left = new byte[OffHeapHashStore.DIGEST_LENGTH];
+        byte[] right = new byte[OffHeapHashStore.DIGEST_LENGTH];
+
+        while (true) {
+            OffHeapHashStore next = newStore();
+            for (long i = 0; i < current.size(); i += 2) {
+                current.get(i, left);
+                current.get(i + 1, right);
+                next.add(MerkleTree.combineDigests(left, right));
+            }
+            levels.add(next);
+
+            if (next.size() == 1)
+                break;
+
+            if (next.size() % 2 != 0)
+                next.add(next.get(next.size() - 1));
+            current = next;
+        }
+    }
+
+    /**
+     * Hex Merkle root, the same value MerkleTree stores in merkleRoot.
+     * Theta(1), constant time complexity
+     */
+    public String getRoot() {
+        return MerkleTree.toHex(getRootDigest());
+    }
+
+    public byte[] getRootDigest() {
+        return levels.get(levels.size() - 1).get(0);
+    }
+
+    /**
+     * Number of lines in the file, i.e. the number of leafs without padding.
+     */
+    public long getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * Number of levels above the leafs, which is also the length of every audit path.
+     */
+    public int getHeight() {
+        return levels.size() - 1;
+    }
+
+    /**
+     * Returns the hash of the line at the given index.
+     * Theta(1), constant time complexity
+     * @param index
+     * Position of the line, 0 &lt;= index &lt; getLineCount()
+     */
+    public byte[] getLeaf(long index) {
+        checkIndex(index);
+        return levels.get(0).get(index);
+    }
+
+    /**
+     * Returns the hash stored at a position of a level, level 0 being the padded leaf level.
+     * Theta(1), constant time complexity
+     */
+    byte[] getNode(int level, long index) {
+        return levels.get(level).get(index);
+    }
+
+    void getNode(int level, long index, byte[] dst) {
+        levels.get(level).get(index, dst);
+    }
+
+    long levelSize(int level) {
+        return levels.get(level).size();
+    }
+
+    /**
+     * Builds the audit path of a line, which lets anyone holding only the root verify that the line is in the file.
+     * Theta(log n), logarithmic in the number of lines
+     * @param index
+     * Position of the line, 0 &lt;= index &lt; getLineCount()
+     * @return
+     * Proof holding one sibling digest for every level below the root
+     */
+    public MerkleProof getProof(long index) {
+        checkIndex(index);
+        byte[][] siblings = new byte[getHeight()][];
+        long position = index;
+
+        for (int level = 0; level < getHeight(); level++) {
+            siblings[level] = levels.get(level).get(position ^ 1);
+            position >>>= 1;
+        }
+        return new MerkleProof(index, siblings);
+    }
+
+    /**
+     * Finds the lines in which this tree and another tree differ. Trees of the same height are compared from the root
+     * down, skipping every subtree of lines present in both trees whose hashes match; trees of different heights are
+     * compared line by line.
+     * Theta(d log n) for d differing lines of trees with the same height, Theta(n) otherwise
+     * @param other
+     * Tree to compare with
+     * @param limit
+     * Largest number of differing lines to report, at least 0
+     * @return
+     * Sorted positions of differing lines, a line present in only one of the trees counts as differing
+     */
+    public long[] diff(OffHeapMerkleTree other, int limit) {
+        if (limit < 0)
+            throw new IllegalArgumentException("limit must not be negative");
+
+        long[] found = new long[Math.min(limit, 1024)];
+        int count = 0;
+        long lines = Math.max(lineCount, other.lineCount);
+
+        if (getHeight() != other.getHeight()) {
+            for (long i = 0; i < lines && count < limit; i++) {
+                if (i >= lineCount || i >= other.lineCount || !Arrays.equals(getLeaf(i), other.getLeaf(i))) {
+                    if (count == found.length)
+                        found = Arrays.copyOf(found, (int) Math.min(limit, count * 2L));
+                    found[count++] = i;
+                }
+            }
+            return Arrays.copyOf(found, count);
+        }
+
+        //depth first from the root, a stack entry is a (level, index) pair of nodes whose hashes differ. Padding
+        //duplicates the last node of a level, so "x y z" pads to the same nodes as "x y z z": a node is only skipped
+        //for equal hashes if all of its leafs are real lines of both trees
+        long common = Math.min(lineCount, other.lineCount);
+        long[] stack = new long[2 * (getHeight() + 1) * 2];
+        int top = 0;
+        stack[top++] = getHeight();
+        stack[top++] = 0;
+        while (top > 0 && count < limit) {
+            long index = stack[--top];
+            int level = (int) stack[--top];
+            if (index << level >= lines || ((index + 1) << level <= common && sameNode(other, level, index)))
+                continue;
+
+            if (level == 0) {
+                if (count == found.length)
+                    found = Arrays.copyOf(found, (int) Math.min(limit, count * 2L));
+                found[count++] = index;
+            } else {
+                //push the right child first so the left one is visited first and positions come out sorted
+                stack[top++] = level - 1;
+                stack[top++] = 2 * index + 1;
+                stack[top++] = level - 1;
+                stack[top++] = 2 * index;
+            }
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    /**
+     * Finds the leafs of this tree whose hash occurs nowhere in another tree, whatever their positions. After an
+     * insertion diff reports every leaf behind it because the leafs have moved, while this only reports the leafs
+     * that are really new, e.g. the few chunks around the insertion in trees built by ofChunks.
+     * Theta(n + m), linear in the number of leafs of both trees
+     * @param other
+     * Tree to compare with, with at most 2^27 leafs
+     * @param limit
+     * Largest number of leafs to report, at least 0
+     * @return
+     * Sorted positions in this tree of the leafs whose hash the other tree does not have
+     */
+    public long[] diffByContent(OffHeapMerkleTree other, int limit) {
+        if (limit < 0)
+            throw new IllegalArgumentException("limit must not be negative");
+
+        LeafDigestIndex index = new LeafDigestIndex(other);
+        long[] found = new long[Math.min(limit, 1024)];
+        int count = 0;
+        byte[] digest = new byte[OffHeapHashStore.DIGEST_LENGTH];
+        for (long i = 0; i < lineCount && count < limit; i++) {
+            getNode(0, i, digest);
+            if (!index.contains(digest)) {
+                if (count == found.length)
+                    found = Arrays.copyOf(found, (int) Math.min(limit, count * 2L));
+                found[count++] = i;
+            }
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    /**
+     * Releases every level of the tree.
+     */
+    @Override
+    public void close() throws IOException {
+        for (OffHeapHashStore level : levels) {
+            level.close();
+        }
+        levels.clear();
+    }
+
+    private void padLeaves() {
+        OffHeapHashStore leaves = levels.get(0);
+        if (leaves.size() == 0)
+            throw new IllegalArgumentException("file has no lines");
+
+        //Forcing leafs to have even number of nodes
+        if (leaves.size() % 2 != 0)
+            leaves.add(leaves.get(leaves.size() - 1));
+    }
+
+    /**
+     * Compares a node of both trees, a node that is missing from one of the trees (or is only its padding) differs.
+     */
+    private boolean sameNode(OffHeapMerkleTree other, int level, long index) {
+        if (level == 0 && (index >= lineCount || index >= other.lineCount))
+            return false;
+        if (index >= levelSize(level) || index >= other.levelSize(level))
+            return false;
+        return Arrays.equals(getNode(level, index), other.getNode(level, index));
+    }
+
+    private OffHeapHashStore newStore() throws IOException {
+        return spillDirectory == null ? new OffHeapHashStore() : new OffHeapHashStore(spillDirectory);
+    }
+
+    private void checkIndex(long index) {
+        if (index < 0 || index >= lineCount)
+            throw new IndexOutOfBoundsException("line " + index + " is outside of a file with " + lineCount + " lines");
+    }
+
+    //Main function comparing the off-heap roots with the roots found by MerkleTree
+    public static void main(String[] args) throws Exception {
+        String[] files = {"CrimeLatLonXY1990_Size2.csv", "CrimeLatLonXY1990_Size3.csv", "smallFile.txt", "CrimeLatLonXY.csv"};
+        File spillDirectory = new File(System.getProperty("java.io.tmpdir"));
+
+        for (String f : files) {
+            String expected = new MerkleTree(f).merkleRoot.getData().toString();
+            try (OffHeapMerkleTree direct = new OffHeapMerkleTree(f);
+                 OffHeapMerkleTree mapped = new OffHeapMerkleTree(f, spillDirectory)) {
+                System.out.println("Calculating root for file : " + f);
+                System.out.println("MerkleTree root       : " + expected);
+                System.out.println("Direct buffer root    : " + direct.getRoot());
+                System.out.println("Memory mapped root    : " + mapped.getRoot());
+
+                MerkleProof proof = direct.getProof(direct.getLineCount() - 1);
+                System.out.println("Proof of last line    : " + proof.verify(direct.getLeaf(proof.getIndex()),
+                        direct.getRootDigest()));
+            }
+            System.out.println("-----------------------------------------------------------------------------------------------------------");
+        }
+    }
+}
@@ -3,6 +3,8 @@
  */
 package edu.cmu.andrew.nikhilka;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 
 /**
  * This class maintains a list of Integer values as an increasing singlyLinkedList
@@ -138,15 +140,319 @@ public class OrderedLinkedListOfIntegers {
             }
         }
 
-        if(List_1.isEmpty()){
+        //one list is used up, the rest of the other one follows as it is
+        if(!List_1.hasNext()){
             mergedList.iterator.setLink(List_2.iterator);
         }
-        else if(List_2.isEmpty()){
+        else{
             mergedList.iterator.setLink(List_1.iterator);
         }
     return mergedList;
     }
 
+    /**
+     * Computes the values present in both lists.
+     * Theta(n + m) linear time complexity
+     * @precondition
+     * Both lists are valid ordered lists, they are not modified
+     * @return
+     * New ordered list holding every value found in both lists once
+     */
+    public static OrderedLinkedListOfIntegers intersect(OrderedLinkedListOfIntegers List_1, OrderedLinkedListOfIntegers List_2){
+        return combine(INTERSECT, List_1, List_2, false);
+    }
+
+    /**
+     * Computes the values present in at least one of the lists, without duplicates.
+     * Theta(n + m) linear time complexity
+     * @precondition
+     * Both lists are valid ordered lists, they are not modified
+     * @return
+     * New ordered list holding every value of either list once
+     */
+    public static OrderedLinkedListOfIntegers union(OrderedLinkedListOfIntegers List_1, OrderedLinkedListOfIntegers List_2){
+        return combine(UNION, List_1, List_2, false);
+    }
+
+    /**
+     * Computes the values of the first list that are not in the second list.
+     * Theta(n + m) linear time complexity
+     * @precondition
+     * Both lists are valid ordered lists, they are not modified
+     * @return
+     * New ordered list holding every value of List_1 missing from List_2 once
+     */
+    public static OrderedLinkedListOfIntegers difference(OrderedLinkedListOfIntegers List_1, OrderedLinkedListOfIntegers List_2){
+        return combine(DIFFERENCE, List_1, List_2, false);
+    }
+
+    /**
+     * Same as intersect, union and difference, but for very large lists the value range is cut into partitions which
+     * are combined in parallel on the common fork join pool. Nodes can only be reached one after the other, so both
+     * lists are first copied to arrays that the partitions can be cut from, which costs Theta(n + m) extra memory.
+     * Lists shorter than PARALLEL_THRESHOLD are combined on the calling thread without any copy.
+     * Theta(n + m) work, linear time complexity for the copies. When one list is more than GALLOP_RATIO times
+     * shorter, an intersection, or a difference of the shorter list, is combined in O(s log(l / s)) comparisons
+     * for the shorter length s and the longer length l, see apply.
+     * @param operation
+     * One of INTERSECT, UNION or DIFFERENCE
+     * @return
+     * New ordered list holding the result of the operation
+     */
+    public static OrderedLinkedListOfIntegers parallel(int operation, OrderedLinkedListOfIntegers List_1,
+                                                       OrderedLinkedListOfIntegers List_2){
+        return combine(operation, List_1, List_2, true);
+    }
+
+    public static final int INTERSECT = 0;
+    public static final int UNION = 1;
+    public static final int DIFFERENCE = 2;
+
+    /**
+     * PARALLEL_THRESHOLD - combined length from which the parallel mode really splits the work
+     */
+    private static final int PARALLEL_THRESHOLD = 1 << 18;
+
+    /**
+     * GALLOP_RATIO - length ratio of two array ranges from which apply searches the longer one instead of walking it
+     */
+    private static final int GALLOP_RATIO = 32;
+
+    private static OrderedLinkedListOfIntegers combine(int operation, OrderedLinkedListOfIntegers List_1,
+                                                       OrderedLinkedListOfIntegers List_2, boolean parallel){
+        if (operation < INTERSECT || operation > DIFFERENCE)
+            throw new IllegalArgumentException("unknown operation " + operation);
+
+        if (!parallel || ObjectNode.listLength(List_1.head) + ObjectNode.listLength(List_2.head) < PARALLEL_THRESHOLD)
+            return walk(operation, List_1.head, List_2.head);
+
+        int[] a = toArray(List_1);
+        int[] b = toArray(List_2);
+        int[][] parts = partitioned(operation, a, b);
+        int length = 0;
+        for (int[] part : parts)
+            length += part[0];
+        int[] result = new int[length];
+        int position = 0;
+        for (int[] part : parts) {
+            System.arraycopy(part, 1, result, position, part[0]);
+            position += part[0];
+        }
+        return fromSorted(result, length);
+    }
+
+    /**
+     * Walks the nodes of both lists side by side like merge does and links every result value once to the end of a
+     * new list.
+     * Theta(n + m), linear time complexity
+     */
+    private static OrderedLinkedListOfIntegers walk(int operation, ObjectNode a, ObjectNode b){
+        OrderedLinkedListOfIntegers answer = new OrderedLinkedListOfIntegers();
+        ObjectNode tail = null;
+
+        while (a != null && b != null) {
+            int x = (int) a.getData();
+            int y = (int) b.getData();
+            if (x < y) {
+                if (operation != INTERSECT)
+                    tail = append(answer, tail, x);
+                a = skip(a, x);
+            } else if (x > y) {
+                if (operation == UNION)
+                    tail = append(answer, tail, y);
+                b = skip(b, y);
+            } else {
+                if (operation != DIFFERENCE)
+                    tail = append(answer, tail, x);
+                a = skip(a, x);
+                b = skip(b, y);
+            }
+        }
+
+        while (operation != INTERSECT && a != null) {
+            int x = (int) a.getData();
+            tail = append(answer, tail, x);
+            a = skip(a, x);
+        }
+        while (operation == UNION && b != null) {
+            int y = (int) b.getData();
+            tail = append(answer, tail, y);
+            b = skip(b, y);
+        }
+        return answer;
+    }
+
+    /**
+     * Links a new node after the tail of a list, or as its head if the list is empty.
+     * @return
+     * The new tail
+     */
+    private static ObjectNode append(OrderedLinkedListOfIntegers list, ObjectNode tail, int value){
+        ObjectNode node = new ObjectNode(value, null);
+        if (tail == null)
+            list.head = node;
+        else
+            tail.setLink(node);
+        return node;
+    }
+
+    /**
+     * First node after the run of nodes holding value.
+     */
+    private static ObjectNode skip(ObjectNode node, int value){
+        while (node != null && (int) node.getData() == value)
+            node = node.getLink();
+        return node;
+    }
+
+    /**
+     * Creates a list holding the first length values of an increasing array.
+     * Theta(n), linear time complexity
+     * @precondition
+     * values[0 .. length - 1] is in increasing order
+     */
+    static OrderedLinkedListOfIntegers fromSorted(int[] values, int length){
+        //link the nodes from the last value to the first so no tail has to be followed
+        OrderedLinkedListOfIntegers answer = new OrderedLinkedListOfIntegers();
+        for (int i = length - 1; i >= 0; i--)
+            answer.head = new ObjectNode(values[i], answer.head);
+        return answer;
+    }
+
+    /**
+     * Cuts the value range into partitions at values of the longer array and combines them in parallel. Every value
+     * falls in exactly one partition, so the partial results only have to be concatenated.
+     * @return
+     * One array per partition, element 0 is the number of values that follow it
+     */
+    private static int[][] partitioned(int operation, int[] a, int[] b){
+        int[] longer = a.length >= b.length ? a : b;
+        int partitions = ForkJoinPool.commonPool().getParallelism() * 4;
+        long[] bounds = new long[partitions + 1];
+        bounds[0] = Long.MIN_VALUE;
+        bounds[partitions] = Long.MAX_VALUE;
+        for (int p = 1; p < partitions; p++)
+            bounds[p] = Math.max(bounds[p - 1], longer[(int) ((long) longer.length * p / partitions)]);
+
+        return IntStream.range(0, partitions).parallel().mapToObj(p -> {
+            int aFrom = lowerBound(a, 0, a.length, bounds[p]);
+            int aTo = lowerBound(a, aFrom, a.length, bounds[p + 1]);
+            int bFrom = lowerBound(b, 0, b.length, bounds[p]);
+            int bTo = lowerBound(b, bFrom, b.length, bounds[p + 1]);
+            int[] part = new int[1 + (operation == UNION ? (aTo - aFrom) + (bTo - bFrom) : aTo - aFrom)];
+            part[0] = apply(operation, a, aFrom, aTo, b, bFrom, bTo, part, 1) - 1;
+            return part;
+        }).toArray(int[][]::new);
+    }
+
+    /**
+     * Combines two sorted array ranges into out, each result value once. If one range is much longer and the result
+     * can only hold values of the shorter one (an intersection, or a difference of the shorter first range), each
+     * value of the shorter range is looked up in the longer one by galloping instead of walking past every value.
+     * @return
+     * Position in out after the last value written
+     */
+    private static int apply(int operation, int[] a, int aFrom, int aTo, int[] b, int bFrom, int bTo, int[] out, int n){
+        long aLength = aTo - aFrom;
+        long bLength = bTo - bFrom;
+        if (operation != UNION && aLength * GALLOP_RATIO < bLength)
+            return gallop(operation, a, aFrom, aTo, b, bFrom, bTo, out, n);
+        if (operation == INTERSECT && bLength * GALLOP_RATIO < aLength)
+            return gallop(operation, b, bFrom, bTo, a, aFrom, aTo, out, n);
+
+        int i = aFrom;
+        int j = bFrom;
+        while (i < aTo && j < bTo) {
+            int x = a[i];
+            int y = b[j];
+            if (x < y) {
+                if (operation != INTERSECT)
+                    out[n++] = x;
+                i = skip(a, i, aTo);
+            } else if (x > y) {
+                if (operation == UNION)
+                    out[n++] = y;
+                j = skip(b, j, bTo);
+            } else {
+                if (operation != DIFFERENCE)
+                    out[n++] = x;
+                i = skip(a, i, aTo);
+                j = skip(b, j, bTo);
+            }
+        }
+
+        while (operation != INTERSECT && i < aTo) {
+            out[n++] = a[i];
+            i = skip(a, i, aTo);
+        }
+        while (operation == UNION && j < bTo) {
+            out[n++] = b[j];
+            j = skip(b, j, bTo);
+        }
+        return n;
+    }
+
+    /**
+     * Looks up every distinct value of the short range in the long range. An intersection keeps the values found, a
+     * difference of the short range keeps the values missing.
+     * O(s log(l / s)), the search for each value starts where the previous one ended
+     * @return
+     * Position in out after the last value written
+     */
+    private static int gallop(int operation, int[] small, int sFrom, int sTo, int[] large, int lFrom, int lTo,
+                              int[] out, int n){
+        int j = lFrom;
+        for (int i = sFrom; i < sTo; i = skip(small, i, sTo)) {
+            int value = small[i];
+            //double the step until it passes value, then search the last step
+            int step = 1;
+            int high = j;
+            while (high < lTo && large[high] < value) {
+                j = high + 1;
+                high = lTo - high <= step ? lTo : high + step;
+                step <<= 1;
+            }
+            j = lowerBound(large, j, high, value);
+            boolean found = j < lTo && large[j] == value;
+            if (found == (operation == INTERSECT))
+                out[n++] = value;
+        }
+        return n;
+    }
+
+    private static int skip(int[] values, int i, int end){
+        int value = values[i];
+        while (i < end && values[i] == value)
+            i++;
+        return i;
+    }
+
+    /**
+     * Position of the first value in values[from, to) that is not less than key.
+     */
+    private static int lowerBound(int[] values, int from, int to, long key){
+        while (from < to) {
+            int middle = (from + to) >>> 1;
+            if (values[middle] < key)
+                from = middle + 1;
+            else
+                to = middle;
+        }
+        return from;
+    }
+
+    /**
+     * Copies the values of a list to an array.
+     * Theta(n), linear time complexity
+     */
+    static int[] toArray(OrderedLinkedListOfIntegers list){
+        int[] values = new int[ObjectNode.listLength(list.head)];
+        int i = 0;
+        for (ObjectNode cursor = list.head; cursor != null; cursor = cursor.getLink())
+            values[i++] = (int) cursor.getData();
+        return values;
+    }
+
     /**
      * Method to return the Object data of the ObjectNode objects as a String.
      * Theta(n), linear time complexity.
@@ -159,7 +465,8 @@ public class OrderedLinkedListOfIntegers {
      */
     public String toString(){
 
-        return head.toString();
+        //a set operation may leave a list without nodes
+        return isEmpty() ? "" : head.toString();
     }
 
     /**
@@ -186,6 +493,25 @@ public class OrderedLinkedListOfIntegers {
 
         System.out.println("Elements in list_1: " + list_1);
         System.out.println("Elements in list_2: " + list_2);
+        System.out.println("Elements in both: " + intersect(list_1, list_2));
+        System.out.println("Elements in either: " + union(list_1, list_2));
+        System.out.println("Elements only in list_1: " + difference(list_1, list_2));
         System.out.println("Elements after merge: " + merge(list_1,list_2));
+
+        //set operations on lists too long for sortedAdd, built from sorted arrays in one pass
+        OrderedLinkedListOfIntegers evens = new OrderedLinkedListOfIntegers();
+        OrderedLinkedListOfIntegers triples = new OrderedLinkedListOfIntegers();
+        for(int i = 2_000_000; i >= 0; i--){
+            if(i % 2 == 0)
+                evens.head = new ObjectNode(i, evens.head);
+            if(i % 3 == 0)
+                triples.head = new ObjectNode(i, triples.head);
+        }
+        long start = System.nanoTime();
+        int common = ObjectNode.listLength(parallel(INTERSECT, evens, triples).head);
+        int either = ObjectNode.listLength(parallel(UNION, evens, triples).head);
+        int onlyEven = ObjectNode.listLength(parallel(DIFFERENCE, evens, triples).head);
+        System.out.println("Multiples of 6, 2 or 3, 2 but not 3 up to 2000000: " + common + ", " + either + ", "
+                + onlyEven + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
     }
 }
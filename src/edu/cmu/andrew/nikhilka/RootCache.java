@@ -0,0 +1,141 @@
+/**
+ * @author Nikhil Kashyap
+ */
+package edu.cmu.andrew.nikhilka;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class remembers the Merkle root of files together with the size and modification time they had when the root
+ * was calculated. A remembered root is only handed out while the file still has that size and modification time, so
+ * a stale root is never used. The cache can be saved to a plain text file with one "root size modified path" line per
+ * file, and is safe to use from several threads.
+ */
+public class RootCache {
+
+    /**
+     * cacheFile - where the cache is loaded from and saved to, null for a cache living only in memory
+     * entries - remembered root of every file, keyed by its absolute normalized path
+     */
+    private final Path cacheFile;
+    private final ConcurrentHashMap<String, Entry> entries;
+
+    public RootCache() {
+        cacheFile = null;
+        entries = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Creates a cache backed by a file, loading the roots saved in it if it exists.
+     * @param cacheFile
+     * File the cache is saved to
+     */
+    public RootCache(Path cacheFile) throws IOException {
+        this.cacheFile = cacheFile;
+        entries = new ConcurrentHashMap<>();
+
+        if (Files.exists(cacheFile)) {
+            try (BufferedReader reader = Files.newBufferedReader(cacheFile, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split(" ", 4);
+                    if (parts.length == 4)
+                        entries.put(parts[3], new Entry(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the remembered root of a file if the file has not changed since.
+     * Theta(1), constant time complexity
+     * @param file
+     * Path of the file
+     * @return
+     * Hex root of the file, or null if there is none or the file has changed
+     */
+    public String get(Path file) throws IOException {
+        Entry entry = entries.get(key(file));
+        if (entry == null)
+            return null;
+
+        if (entry.size != Files.size(file) || entry.modified != Files.getLastModifiedTime(file).toMillis())
+            return null;
+        return entry.root;
+    }
+
+    /**
+     * Calculates the root of a file and remembers it with the size and modification time the file had before it was
+     * read. If either has changed by the time the root is known, the file was written while it was read and the root
+     * is returned but not remembered, so it is calculated again next time.
+     * Theta(n), linear in the size of the file
+     * @param file
+     * Path of the file
+     * @param function
+     * Calculates the root of the file
+     * @return
+     * Hex root of the file
+     */
+    public String computeAndPut(Path file, RootFunction function) throws IOException {
+        long size = Files.size(file);
+        long modified = Files.getLastModifiedTime(file).toMillis();
+        String root = function.root(file);
+        if (size == Files.size(file) && modified == Files.getLastModifiedTime(file).toMillis())
+            entries.put(key(file), new Entry(root, size, modified));
+        return root;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Writes every remembered root to the cache file, replacing it atomically.
+     * Theta(n), linear in the number of remembered files
+     */
+    public void save() throws IOException {
+        if (cacheFile == null)
+            return;
+
+        Path temp = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> e : new TreeMap<>(entries).entrySet()) {
+                Entry entry = e.getValue();
+                writer.write(entry.root + " " + entry.size + " " + entry.modified + " " + e.getKey());
+                writer.newLine();
+            }
+        }
+        Files.move(temp, cacheFile, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Calculates the root of a single file for computeAndPut.
+     */
+    public interface RootFunction {
+        String root(Path file) throws IOException;
+    }
+
+    private static String key(Path file) {
+        return file.toAbsolutePath().normalize().toString();
+    }
+
+    private static class Entry {
+        private final String root;
+        private final long size;
+        private final long modified;
+
+        Entry(String root, long size, long modified) {
+            this.root = root;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+}
@@ -37,6 +37,9 @@ public class SinglyLinkedList {
      */
     public void addAtFrontNode(Object c){
         head = new ObjectNode(c, head);
+        //the first node of a list is also its last
+        if (tail == null)
+            tail = head;
         countNodes++;
     }
 
@@ -63,6 +66,27 @@ public class SinglyLinkedList {
         tail = new_last;
     }
 
+    /**
+     * Moves all nodes of another list to the end of this list without copying them
+     * Theta(1), constant time complexity
+     * @param other
+     * A valid SinglyLinkedList object, it is empty afterwards
+     * @postcondition
+     * The nodes of other follow the nodes of this list, and other no longer holds any node.
+     */
+    public void append(SinglyLinkedList other){
+        if (other.isEmpty() || other == this)
+            return;
+
+        ObjectNode[] joined = ObjectNode.listConcat(new ObjectNode[]{head, tail}, new ObjectNode[]{other.head, other.tail});
+        head = joined[0];
+        tail = joined[1];
+        countNodes += other.countNodes;
+
+        other.head = other.tail = other.iterator = null;
+        other.countNodes = 0;
+    }
+
     /*
     Keeps count of nodes in a linked list
     Theta(1), constant time complexity